@@ -1,27 +1,89 @@
 require("dotenv").config();
 
+const crypto = require("crypto");
 const fs = require("fs");
+const http = require("http");
+const https = require("https");
+const os = require("os");
 const path = require("path");
-const { parse: csvParseSync} = require("csv-parse/sync");
+const readline = require("readline");
+const { StringDecoder } = require("string_decoder");
+const { Worker, isMainThread, parentPort, threadId, workerData } = require("worker_threads");
+const { Transform } = require("stream");
+const { pipeline } = require("stream/promises");
+const { parse: csvParse } = require("csv-parse");
 const { Configuration, OpenAIApi } = require("openai");
-const typescript = require("typescript");
 const yargs = require("yargs/yargs");
 const { hideBin } = require("yargs/helpers");
 
 const configuration = new Configuration({
   apiKey: process.env.OPENAI_API_KEY,
+  // Lets a local stand-in for the API be used, e.g. one replaying server-sent events in tests
+  basePath: process.env.OPENAI_API_BASE || undefined,
+  // Keep connections to the API open between requests
+  baseOptions: {
+    httpAgent: new http.Agent({ keepAlive: true }),
+    httpsAgent: new https.Agent({ keepAlive: true }),
+  },
 });
 
 const openai = new OpenAIApi(configuration);
 
 const CSV_DATASET_PATH = process.env.DOCKER_RUNNING ? "/data/dataset.csv" : "data/dataset.csv";
 const JSONL_DATASET_PATH = process.env.DOCKER_RUNNING ? "/data/dataset.jsonl" : "data/dataset.jsonl";
+const JSONL_VALIDATION_PATH = process.env.DOCKER_RUNNING
+  ? "/data/dataset.validation.jsonl"
+  : "data/dataset.validation.jsonl";
+const OUTPUT_PATH = process.env.DOCKER_RUNNING ? "/data/output" : "data/output";
+// Vendored with the code rather than on the data volume
+const TOKENIZER_PATH = path.join(__dirname, "data", "tokenizer");
+const GPT2_VOCABULARY_URL = "https://openaipublic.blob.core.windows.net/gpt-2/models/124M";
+const COMPLETION_CACHE_PATH = path.join(OUTPUT_PATH, "cache", "completions");
+const PARSE_CACHE_PATH = path.join(OUTPUT_PATH, "cache", "parse");
+// Bump whenever the pairs extracted from a file change, so cached pairs from older versions are not used
+const EXTRACTOR_VERSION = 4;
+const COMPLETION_CACHE_TTL_HOURS = 24 * 7;
+const COMPLETION_CACHE_MEMORY_ENTRIES = 1000;
+const COMPLETION_CACHE_DISK_BYTES = 256 * 1024 * 1024;
+// Fingerprints kept exactly by --dedup before it falls back to a Bloom filter of DEDUP_BLOOM_BITS (64MB)
+const DEDUP_MEMORY_ENTRIES = 16 * 1024 * 1024;
+const DEDUP_BLOOM_BITS = 512 * 1024 * 1024;
+// Most bytes of dataset held in memory at once by --shuffle
+const SHUFFLE_BUCKET_BYTES = 64 * 1024 * 1024;
+// Most bytes of rows sorted in memory at once by merge, larger inputs are sorted in several runs on disk
+const MERGE_RUN_BYTES = 64 * 1024 * 1024;
+// Most runs merged at once by merge, each holding a file open, more runs are merged in several passes
+const MERGE_FAN_IN = 256;
 
 const debug = process.env.DEBUG.includes("true") ? (message) => console.log(message) : () => {};
 
-function convertCsvToJsonl(csvFilePath, jsonlFilePath) {
-  const csvData = fs.readFileSync(csvFilePath, "utf8");
-  const records = csvParseSync(csvData, {
+let typescriptModule;
+
+/**
+ * Returns the TypeScript compiler, loading it on first use. It is large and only needed to parse source code.
+ */
+function loadTypescript() {
+  typescriptModule = typescriptModule || require("typescript");
+  return typescriptModule;
+}
+
+/**
+ * Returns a transform stream that turns objects into JSON lines.
+ */
+function toJsonLines() {
+  return new Transform({
+    writableObjectMode: true,
+    transform(record, encoding, callback) {
+      callback(null, JSON.stringify(record) + "\n");
+    },
+  });
+}
+
+/**
+ * Returns a csv-parse stream turning rows of a dataset CSV file into prompt and completion records.
+ */
+function datasetCsvParser() {
+  return csvParse({
     columns: true,
     skip_empty_lines: true,
     quote: '"',
@@ -31,18 +93,1000 @@ function convertCsvToJsonl(csvFilePath, jsonlFilePath) {
       return { prompt, completion: record.completion };
     }
   });
-  fs.writeFileSync(jsonlFilePath, records.map(JSON.stringify).join("\n"));
 }
 
-async function uploadDatasetAndFineTuneModel() {
-  const uploadResponse = await openai.createFile(
-    fs.createReadStream(JSONL_DATASET_PATH),
-    "fine-tune"
+/**
+ * Streams the prompt and completion records of a dataset file, either CSV or JSONL.
+ * @param {string} filePath
+ */
+async function* readDatasetRecords(filePath) {
+  if (path.extname(filePath) === ".jsonl") {
+    const lines = readline.createInterface({ input: fs.createReadStream(filePath), crlfDelay: Infinity });
+    for await (const line of lines) {
+      if (line.trim()) {
+        yield JSON.parse(line);
+      }
+    }
+  } else {
+    const parser = datasetCsvParser();
+    fs.createReadStream(filePath).on("error", (error) => parser.destroy(error)).pipe(parser);
+    yield* parser;
+  }
+}
+
+/**
+ * Returns a transform stream passing on the records returned by `map`, dropping the records it returns undefined for.
+ * @param {(record: object) => object | undefined} map
+ */
+function mapRecords(map) {
+  return new Transform({
+    objectMode: true,
+    transform(record, encoding, callback) {
+      callback(null, map(record));
+    },
+  });
+}
+
+let codeScanner;
+
+/**
+ * Returns the tokens of a piece of code as scanned by the TypeScript scanner, without whitespace and comments.
+ * @param {string} text
+ */
+function codeTokens(text) {
+  const typescript = loadTypescript();
+  codeScanner = codeScanner || typescript.createScanner(typescript.ScriptTarget.Latest, true);
+  codeScanner.setText(text);
+  const tokens = [];
+  while (codeScanner.scan() !== typescript.SyntaxKind.EndOfFileToken) {
+    tokens.push(codeScanner.getTokenText());
+  }
+  return tokens;
+}
+
+/**
+ * Creates a set of 64 bit fingerprints in an open addressing table of typed arrays. Once it holds `maxEntries`
+ * fingerprints it switches to a Bloom filter of `bloomBits` bits, which keeps memory bounded at the cost of
+ * occasionally taking a new fingerprint for one already added.
+ * @param {object} options
+ */
+function createFingerprintSet({ maxEntries = DEDUP_MEMORY_ENTRIES, bloomBits = DEDUP_BLOOM_BITS } = {}) {
+  const BLOOM_HASHES = 7;
+  let capacity = 1 << 16;
+  let table = new Uint32Array(capacity * 2);
+  let size = 0;
+  let bloom;
+
+  // Returns true when the fingerprint was not in the table yet
+  function insert(hi, lo) {
+    for (let slot = lo & (capacity - 1); ; slot = (slot + 1) & (capacity - 1)) {
+      if (table[slot * 2] === 0 && table[slot * 2 + 1] === 0) {
+        table[slot * 2] = hi;
+        table[slot * 2 + 1] = lo;
+        size++;
+        return true;
+      }
+      if (table[slot * 2] === hi && table[slot * 2 + 1] === lo) {
+        return false;
+      }
+    }
+  }
+
+  function bloomInsert(hi, lo) {
+    let added = false;
+    for (let i = 0; i < BLOOM_HASHES; i++) {
+      const bit = ((lo + Math.imul(i, hi)) >>> 0) % bloomBits;
+      const mask = 1 << (bit & 31);
+      if (!(bloom[bit >>> 5] & mask)) {
+        bloom[bit >>> 5] |= mask;
+        added = true;
+      }
+    }
+    return added;
+  }
+
+  function resize() {
+    const entries = table;
+    if (capacity >= maxEntries * 2) {
+      debug(`Dedup set is full at ${size} fingerprints, falling back to a Bloom filter`);
+      bloom = new Uint32Array(Math.ceil(bloomBits / 32));
+      table = undefined;
+      for (let slot = 0; slot < entries.length; slot += 2) {
+        if (entries[slot] !== 0 || entries[slot + 1] !== 0) {
+          bloomInsert(entries[slot], entries[slot + 1]);
+        }
+      }
+      return;
+    }
+    capacity *= 2;
+    table = new Uint32Array(capacity * 2);
+    size = 0;
+    for (let slot = 0; slot < entries.length; slot += 2) {
+      if (entries[slot] !== 0 || entries[slot + 1] !== 0) {
+        insert(entries[slot], entries[slot + 1]);
+      }
+    }
+  }
+
+  return {
+    get approximate() {
+      return bloom !== undefined;
+    },
+    /**
+     * Adds the first 8 bytes of a digest as a fingerprint, returning false when it was already in the set.
+     * @param {Buffer} digest
+     */
+    add(digest) {
+      const hi = digest.readUInt32LE(0);
+      // The all zero fingerprint marks empty slots
+      const lo = digest.readUInt32LE(4) || 1;
+      if (bloom) {
+        return bloomInsert(hi, lo);
+      }
+      const added = insert(hi, lo);
+      if (size * 2 > capacity) {
+        resize();
+      }
+      return added;
+    },
+  };
+}
+
+/**
+ * Returns a hash of a prompt and the tokens of its completion, so it does not change with the whitespace, comments
+ * or formatting of the completion.
+ * @param {string} prompt
+ * @param {string} completion
+ */
+function pairDigest(prompt, completion) {
+  return crypto.createHash("sha1").update(prompt).update("\0").update(codeTokens(completion).join(" ")).digest();
+}
+
+/**
+ * Creates a filter for repeated prompt and completion pairs. Completions are compared by their tokens, so pairs
+ * only differing in whitespace, comments or formatting are repeats too.
+ * @param {object} options Passed through to `createFingerprintSet`
+ */
+function createDeduplicator(options) {
+  const fingerprints = createFingerprintSet(options);
+  const stats = { rows: 0, removedRows: 0, removedBytes: 0 };
+  return {
+    stats,
+    /**
+     * Returns true the first time a pair is seen.
+     * @param {string} prompt
+     * @param {string} completion
+     */
+    keep(prompt, completion = "") {
+      stats.rows++;
+      if (fingerprints.add(pairDigest(prompt, completion))) {
+        return true;
+      }
+      stats.removedRows++;
+      stats.removedBytes += Buffer.byteLength(prompt) + Buffer.byteLength(completion);
+      return false;
+    },
+    debugStats() {
+      debug(
+        `Dedup: removed ${stats.removedRows} of ${stats.rows} rows (${stats.removedBytes} bytes)` +
+          (fingerprints.approximate ? ", a few unique rows may have been removed by the Bloom filter" : "")
+      );
+    },
+  };
+}
+
+const MINHASH_HASHES = 64;
+const SHINGLE_TOKENS = 3;
+
+/**
+ * Returns a 32 bit FNV-1a hash of a string.
+ * @param {string} text
+ */
+function fnv1a(text) {
+  let hash = 0x811c9dc5;
+  for (let i = 0; i < text.length; i++) {
+    hash = Math.imul(hash ^ text.charCodeAt(i), 0x01000193);
+  }
+  return hash >>> 0;
+}
+
+/**
+ * Finishes a 32 bit hash with the MurmurHash3 mixer, so hashes of similar inputs end up far apart.
+ * @param {number} hash
+ */
+function mixHash(hash) {
+  hash = Math.imul(hash ^ (hash >>> 16), 0x85ebca6b);
+  hash = Math.imul(hash ^ (hash >>> 13), 0xc2b2ae35);
+  return (hash ^ (hash >>> 16)) >>> 0;
+}
+
+/**
+ * Returns the MinHash signature of the shingles of `SHINGLE_TOKENS` consecutive tokens of a piece of code. The
+ * share of equal values in the signatures of two pieces of code estimates the Jaccard similarity of their shingles.
+ * @param {string[]} tokens
+ * @param {Uint32Array} signature Filled with the signature
+ */
+function minHashSignature(tokens, signature) {
+  signature.fill(0xffffffff);
+  const shingles = Math.max(1, tokens.length - SHINGLE_TOKENS + 1);
+  for (let i = 0; i < shingles; i++) {
+    const base = fnv1a(tokens.slice(i, i + SHINGLE_TOKENS).join(" "));
+    const step = mixHash(base) | 1;
+    for (let j = 0; j < signature.length; j++) {
+      const hash = mixHash((base + Math.imul(j, step)) >>> 0);
+      if (hash < signature[j]) {
+        signature[j] = hash;
+      }
+    }
+  }
+  return signature;
+}
+
+/**
+ * Creates a filter collapsing pairs whose completions are near duplicates of one already kept, e.g. the same guard
+ * with another identifier. Completions are compared by the MinHash signatures of their scanner token shingles, and
+ * locality-sensitive hashing on bands of the signatures finds the candidates to compare without comparing every
+ * pair. Everything is kept in typed arrays: per completion kept, its signature and a link per band to the previous
+ * completion in the same bucket, and a hash table from bucket to the last completion added to it.
+ * @param {object} options The Jaccard `threshold` above which completions are near duplicates
+ */
+function createNearDeduplicator({ threshold = 0.7 } = {}) {
+  // The most rows per band, and so the fewest false candidates, that still finds pairs at the threshold
+  let rows = 1;
+  while (rows * 2 <= MINHASH_HASHES && Math.pow((rows * 2) / MINHASH_HASHES, 1 / (rows * 2)) <= threshold) {
+    rows *= 2;
+  }
+  const bands = MINHASH_HASHES / rows;
+  const signature = new Uint32Array(MINHASH_HASHES);
+  const hashes = new Uint32Array(bands);
+  let signatures = new Uint32Array(MINHASH_HASHES * 1024);
+  let previous = new Int32Array(bands * 1024);
+  // The last row each kept completion was compared with, so completions sharing several buckets are compared once
+  let comparedAt = new Int32Array(1024);
+  let capacity = 1 << 12;
+  let bucketHashes = new Uint32Array(capacity);
+  let bucketBands = new Uint8Array(capacity);
+  let bucketHeads = new Int32Array(capacity).fill(-1);
+  let buckets = 0;
+  let kept = 0;
+  const stats = { rows: 0, removedRows: 0, removedBytes: 0, comparisons: 0 };
+
+  const bandHash = (band) => {
+    let hash = band;
+    for (let i = band * rows; i < (band + 1) * rows; i++) {
+      hash = mixHash(hash ^ signature[i]);
+    }
+    return hash;
+  };
+  // Returns the slot of the bucket, or the empty slot where it goes
+  const slotOf = (band, hash) => {
+    let slot = hash & (capacity - 1);
+    while (bucketHeads[slot] !== -1 && (bucketHashes[slot] !== hash || bucketBands[slot] !== band)) {
+      slot = (slot + 1) & (capacity - 1);
+    }
+    return slot;
+  };
+  const growBuckets = () => {
+    const [oldHashes, oldBands, oldHeads] = [bucketHashes, bucketBands, bucketHeads];
+    capacity *= 2;
+    bucketHashes = new Uint32Array(capacity);
+    bucketBands = new Uint8Array(capacity);
+    bucketHeads = new Int32Array(capacity).fill(-1);
+    for (let i = 0; i < oldHeads.length; i++) {
+      if (oldHeads[i] !== -1) {
+        const slot = slotOf(oldBands[i], oldHashes[i]);
+        [bucketHashes[slot], bucketBands[slot], bucketHeads[slot]] = [oldHashes[i], oldBands[i], oldHeads[i]];
+      }
+    }
+  };
+  const grow = (array, length) => {
+    const grown = new array.constructor(length);
+    grown.set(array);
+    return grown;
+  };
+  const similarity = (index) => {
+    stats.comparisons++;
+    let equal = 0;
+    for (let i = 0, offset = index * MINHASH_HASHES; i < MINHASH_HASHES; i++) {
+      equal += signatures[offset + i] === signature[i] ? 1 : 0;
+    }
+    return equal / MINHASH_HASHES;
+  };
+
+  return {
+    stats,
+    /**
+     * Returns true when the completion is not a near duplicate of one kept before.
+     * @param {string} prompt
+     * @param {string} completion
+     */
+    keep(prompt, completion = "") {
+      stats.rows++;
+      minHashSignature(codeTokens(completion), signature);
+      for (let band = 0; band < bands; band++) {
+        hashes[band] = bandHash(band);
+        const slot = slotOf(band, hashes[band]);
+        for (let index = bucketHeads[slot]; index !== -1; index = previous[index * bands + band]) {
+          if (comparedAt[index] !== stats.rows) {
+            comparedAt[index] = stats.rows;
+            if (similarity(index) >= threshold) {
+              stats.removedRows++;
+              stats.removedBytes += Buffer.byteLength(prompt) + Buffer.byteLength(completion);
+              return false;
+            }
+          }
+        }
+      }
+      if (kept === comparedAt.length) {
+        signatures = grow(signatures, signatures.length * 2);
+        previous = grow(previous, previous.length * 2);
+        comparedAt = grow(comparedAt, comparedAt.length * 2);
+      }
+      signatures.set(signature, kept * MINHASH_HASHES);
+      for (let band = 0; band < bands; band++) {
+        const slot = slotOf(band, hashes[band]);
+        if (bucketHeads[slot] === -1) {
+          bucketHashes[slot] = hashes[band];
+          bucketBands[slot] = band;
+          buckets++;
+        }
+        previous[kept * bands + band] = bucketHeads[slot];
+        bucketHeads[slot] = kept;
+      }
+      kept++;
+      while (buckets * 2 > capacity) {
+        growBuckets();
+      }
+      return true;
+    },
+    debugStats() {
+      debug(
+        `Near dedup: removed ${stats.removedRows} of ${stats.rows} rows (${stats.removedBytes} bytes) at ` +
+          `Jaccard ${threshold} with ${bands} bands of ${rows}, ${stats.comparisons} signature comparisons`
+      );
+    },
+  };
+}
+
+// Splits text into the pieces GPT-2 encodes separately: contractions, words, numbers, punctuation and whitespace
+const BPE_PIECE_PATTERN = /'s|'t|'re|'ve|'m|'ll|'d| ?\p{L}+| ?\p{N}+| ?[^\s\p{L}\p{N}]+|\s+(?!\S)|\s+/gu;
+const BPE_CACHE_ENTRIES = 100000;
+
+/**
+ * Returns the characters GPT-2 byte-level BPE stands each byte in for, printable bytes standing for themselves.
+ */
+function bpeByteCharacters() {
+  const characters = new Array(256);
+  let next = 256;
+  for (let byte = 0; byte < 256; byte++) {
+    const printable = (byte >= 33 && byte <= 126) || (byte >= 161 && byte <= 172) || byte >= 174;
+    characters[byte] = String.fromCharCode(printable ? byte : next++);
+  }
+  return characters;
+}
+
+/**
+ * Creates a GPT-2 byte-level BPE tokenizer from the `encoder.json` and `vocab.bpe` files of the GPT-2 release.
+ * Merges are looked up and applied on token ids in a reused typed array, so merging a piece allocates nothing but
+ * its result. The tokens of each piece of text are cached, so common pieces like keywords and indentation are
+ * merged once.
+ * @param {object} encoder The token ids by token
+ * @param {string} merges The contents of `vocab.bpe`, one merge per line in priority order
+ */
+function createBpeTokenizer(encoder, merges) {
+  const byteCharacters = bpeByteCharacters();
+  const characterBytes = new Map(byteCharacters.map((character, byte) => [character, byte]));
+  const byteIds = Int32Array.from(byteCharacters, (character) => encoder[character]);
+  const tokenBytes = [];
+  for (const [token, id] of Object.entries(encoder)) {
+    tokenBytes[id] = Buffer.from(Array.from(token, (character) => characterBytes.get(character)));
+  }
+  const pairKey = (first, second) => first * tokenBytes.length + second;
+  // The rank of merging each pair of token ids, and the first and second ids and merged id of each rank
+  const ranks = new Map();
+  const lines = merges.split("\n").filter((line) => line && !line.startsWith("#version"));
+  const [firstIds, secondIds, mergedIds] = [0, 1, 2].map(() => new Int32Array(lines.length));
+  lines.forEach((line, rank) => {
+    const space = line.indexOf(" ");
+    const [first, second] = [line.slice(0, space), line.slice(space + 1)];
+    if (first in encoder && second in encoder && first + second in encoder) {
+      [firstIds[rank], secondIds[rank], mergedIds[rank]] = [encoder[first], encoder[second], encoder[first + second]];
+      ranks.set(pairKey(firstIds[rank], secondIds[rank]), rank);
+    }
+  });
+  let bytes = Buffer.alloc(256);
+  let parts = new Int32Array(256);
+  const cache = new Map();
+
+  function bpe(piece) {
+    let length = Buffer.byteLength(piece);
+    if (length > bytes.length) {
+      bytes = Buffer.alloc(length * 2);
+      parts = new Int32Array(length * 2);
+    }
+    bytes.write(piece);
+    for (let i = 0; i < length; i++) {
+      parts[i] = byteIds[bytes[i]];
+    }
+    while (length > 1) {
+      let best = Infinity;
+      for (let i = 0; i < length - 1; i++) {
+        const rank = ranks.get(pairKey(parts[i], parts[i + 1]));
+        if (rank < best) {
+          best = rank;
+        }
+      }
+      if (best === Infinity) {
+        break;
+      }
+      // Merge every occurrence of the pair in place
+      const first = firstIds[best];
+      const second = secondIds[best];
+      const merged = mergedIds[best];
+      let written = 0;
+      for (let i = 0; i < length; i++) {
+        if (i < length - 1 && parts[i] === first && parts[i + 1] === second) {
+          parts[written++] = merged;
+          i++;
+        } else {
+          parts[written++] = parts[i];
+        }
+      }
+      length = written;
+    }
+    return Array.from(parts.subarray(0, length));
+  }
+
+  function encodePiece(piece) {
+    let encoded = cache.get(piece);
+    if (!encoded) {
+      if (cache.size >= BPE_CACHE_ENTRIES) {
+        cache.clear();
+      }
+      encoded = bpe(piece);
+      cache.set(piece, encoded);
+    }
+    return encoded;
+  }
+
+  return {
+    exact: true,
+    encode(text) {
+      const encoded = [];
+      for (const [piece] of text.matchAll(BPE_PIECE_PATTERN)) {
+        encoded.push(...encodePiece(piece));
+      }
+      return encoded;
+    },
+    count(text) {
+      let count = 0;
+      for (const [piece] of text.matchAll(BPE_PIECE_PATTERN)) {
+        count += encodePiece(piece).length;
+      }
+      return count;
+    },
+    decode(encoded) {
+      return Buffer.concat(encoded.map((id) => tokenBytes[id])).toString("utf8");
+    },
+    truncate(text, maxTokens) {
+      // A multi-byte character split by the cut decodes to a replacement character, which is dropped
+      return this.decode(this.encode(text).slice(0, maxTokens)).replace(/\uFFFD+$/, "");
+    },
+  };
+}
+
+/**
+ * Creates a tokenizer estimating GPT-2 token counts from the same pieces of text, taking every 4 bytes of a piece
+ * as a token, for when the GPT-2 vocabulary is not available.
+ */
+function createEstimatingTokenizer() {
+  const estimate = (piece) => Math.max(1, Math.ceil(Buffer.byteLength(piece) / 4));
+  return {
+    exact: false,
+    count(text) {
+      let count = 0;
+      for (const [piece] of text.matchAll(BPE_PIECE_PATTERN)) {
+        count += estimate(piece);
+      }
+      return count;
+    },
+    truncate(text, maxTokens) {
+      let count = 0;
+      for (const match of text.matchAll(BPE_PIECE_PATTERN)) {
+        count += estimate(match[0]);
+        if (count > maxTokens) {
+          return text.slice(0, match.index);
+        }
+      }
+      return text;
+    },
+  };
+}
+
+/**
+ * Downloads a file, writing it to a temporary file first so an interrupted download never leaves a partial file.
+ * @param {string} url
+ * @param {string} filePath
+ */
+async function downloadFile(url, filePath) {
+  const response = await new Promise((resolve, reject) => https.get(url, resolve).on("error", reject));
+  if (response.statusCode >= 300 && response.statusCode < 400 && response.headers.location) {
+    response.resume();
+    return downloadFile(new URL(response.headers.location, url).toString(), filePath);
+  }
+  if (response.statusCode !== 200) {
+    response.resume();
+    throw new Error(`Downloading ${url} failed with status ${response.statusCode}`);
+  }
+  const temporaryPath = `${filePath}.${process.pid}.tmp`;
+  await pipeline(response, fs.createWriteStream(temporaryPath));
+  fs.renameSync(temporaryPath, filePath);
+}
+
+/**
+ * Downloads the `encoder.json` and `vocab.bpe` files of the GPT-2 release to `data/tokenizer`, replacing the
+ * vendored copy.
+ */
+async function fetchTokenizer() {
+  fs.mkdirSync(TOKENIZER_PATH, { recursive: true });
+  await Promise.all(
+    ["encoder.json", "vocab.bpe"].map((name) =>
+      downloadFile(`${GPT2_VOCABULARY_URL}/${name}`, path.join(TOKENIZER_PATH, name))
+    )
+  );
+}
+
+let tokenizer;
+
+/**
+ * Returns the GPT-2 tokenizer using the vocabulary vendored in `data/tokenizer`, or one estimating token counts when
+ * the `encoder.json` and `vocab.bpe` files are missing. The vocabulary is checked against a known encoding, as any
+ * other vocabulary would count tokens wrongly without failing.
+ */
+function loadTokenizer() {
+  if (!tokenizer) {
+    try {
+      const bpeTokenizer = createBpeTokenizer(
+        JSON.parse(fs.readFileSync(path.join(TOKENIZER_PATH, "encoder.json"), "utf8")),
+        fs.readFileSync(path.join(TOKENIZER_PATH, "vocab.bpe"), "utf8")
+      );
+      const encoded = bpeTokenizer.encode("hello world");
+      if (encoded.join(" ") !== "31373 995") {
+        throw new Error(
+          `The vocabulary in ${TOKENIZER_PATH} is not the GPT-2 vocabulary, it encodes "hello world" as ` +
+            `${encoded.join(" ")} rather than 31373 995. Run \`node index.js fetch-tokenizer\` to replace it.`
+        );
+      }
+      tokenizer = bpeTokenizer;
+    } catch (error) {
+      if (error.code !== "ENOENT") {
+        throw error;
+      }
+      console.error(
+        `No GPT-2 vocabulary in ${TOKENIZER_PATH}, estimating token counts. ` +
+          "Run `node index.js fetch-tokenizer` to count them exactly."
+      );
+      tokenizer = createEstimatingTokenizer();
+    }
+  }
+  return tokenizer;
+}
+
+/**
+ * Creates a conversion stage for records over a token budget, which are either dropped or have their completion
+ * truncated to fit. Records whose prompt alone is over the budget are always dropped. Rows are not dropped on an
+ * estimate, so this needs the GPT-2 vocabulary.
+ * @param {object} options `maxTokens` per record and `overBudget`, `drop` or `truncate`
+ */
+function createTokenBudget({ maxTokens, overBudget = "drop" }) {
+  const tokenizer = loadTokenizer();
+  if (!tokenizer.exact) {
+    throw new Error(
+      `A token budget needs the GPT-2 vocabulary in ${TOKENIZER_PATH}, run \`node index.js fetch-tokenizer\``
+    );
+  }
+  const stats = { rows: 0, dropped: 0, truncated: 0, tokens: 0 };
+  return {
+    map(record) {
+      stats.rows++;
+      const promptTokens = tokenizer.count(record.prompt);
+      const completionTokens = tokenizer.count(record.completion || "");
+      if (promptTokens + completionTokens <= maxTokens) {
+        stats.tokens += promptTokens + completionTokens;
+        return record;
+      }
+      if (overBudget === "drop" || promptTokens >= maxTokens) {
+        stats.dropped++;
+        return undefined;
+      }
+      stats.truncated++;
+      const completion = tokenizer.truncate(record.completion, maxTokens - promptTokens);
+      stats.tokens += promptTokens + tokenizer.count(completion);
+      return { ...record, completion };
+    },
+    debugStats() {
+      debug(
+        `Token budget of ${maxTokens}: dropped ${stats.dropped} and truncated ${stats.truncated} of ${stats.rows} ` +
+          `rows, ${stats.tokens} tokens kept${tokenizer.exact ? "" : " (estimated)"}`
+      );
+    },
+  };
+}
+
+/**
+ * Turns a `keep(prompt, completion)` filter like `createDeduplicator` into a conversion stage.
+ * @param {object} filter
+ */
+function filterStage(filter) {
+  return {
+    map: (record) => (filter.keep(record.prompt, record.completion) ? record : undefined),
+    debugStats: () => filter.debugStats(),
+  };
+}
+
+/**
+ * Returns a transform stream writing the records `isValidation` returns true for as JSON lines to `validationStream`,
+ * and passing on the others. Both outputs are written in the same pass, waiting for the validation stream to drain.
+ * @param {(record: object) => boolean} isValidation
+ * @param {fs.WriteStream} validationStream Ended once all records are written
+ */
+function splitRecords(isValidation, validationStream) {
+  return new Transform({
+    objectMode: true,
+    transform(record, encoding, callback) {
+      if (!isValidation(record)) {
+        callback(null, record);
+      } else if (validationStream.write(JSON.stringify(record) + "\n")) {
+        callback();
+      } else {
+        validationStream.once("drain", () => callback());
+      }
+    },
+    flush(callback) {
+      validationStream.end(callback);
+    },
+  });
+}
+
+/**
+ * Returns a seeded pseudo-random number generator (Mulberry32) returning numbers in [0, 1).
+ * @param {number} seed
+ */
+function createRandom(seed) {
+  let state = seed >>> 0;
+  return () => {
+    state = (state + 0x6d2b79f5) >>> 0;
+    let t = Math.imul(state ^ (state >>> 15), state | 1);
+    t ^= t + Math.imul(t ^ (t >>> 7), t | 61);
+    return ((t ^ (t >>> 14)) >>> 0) / 2 ** 32;
+  };
+}
+
+/**
+ * Returns a pipeline stage shuffling records on disk, so datasets larger than memory can be shuffled. Records are
+ * scattered over bucket files in a temporary directory at random, and each bucket is then read back and shuffled in
+ * memory, so only one bucket is held in memory at a time. The same seed gives the same order for the same records.
+ * @param {object} options The `seed`, the number of `buckets` and the `directory` to create the temporary directory
+ * in, which should be on disk rather than the often memory backed system temporary directory
+ */
+function shuffleRecords({ seed, buckets, directory: parentDirectory }) {
+  return async function* shuffle(records) {
+    const start = process.hrtime.bigint();
+    const random = createRandom(seed);
+    const directory = fs.mkdtempSync(path.join(parentDirectory, ".shuffle-"));
+    const bucketPaths = Array.from({ length: buckets }, (_, i) => path.join(directory, `${i}.jsonl`));
+    const streams = bucketPaths.map((bucketPath) => fs.createWriteStream(bucketPath));
+    // Lines are batched per bucket, writing them one at a time costs more than the shuffle itself
+    const pending = Array.from({ length: buckets }, () => []);
+    const pendingLength = new Array(buckets).fill(0);
+    const write = async (bucket) => {
+      const stream = streams[bucket];
+      const chunk = pending[bucket].join("");
+      pending[bucket] = [];
+      pendingLength[bucket] = 0;
+      if (!stream.write(chunk)) {
+        await new Promise((resolve) => stream.once("drain", resolve));
+      }
+    };
+    let rows = 0;
+    let bytes = 0;
+    try {
+      for await (const record of records) {
+        const line = JSON.stringify(record) + "\n";
+        const bucket = Math.floor(random() * buckets);
+        rows++;
+        bytes += Buffer.byteLength(line);
+        pending[bucket].push(line);
+        pendingLength[bucket] += line.length;
+        if (pendingLength[bucket] >= 64 * 1024) {
+          await write(bucket);
+        }
+      }
+      for (let bucket = 0; bucket < buckets; bucket++) {
+        await write(bucket);
+      }
+      await Promise.all(
+        streams.map((stream) => new Promise((resolve, reject) => stream.end((error) => (error ? reject(error) : resolve()))))
+      );
+      for (const bucketPath of bucketPaths) {
+        const lines = fs.readFileSync(bucketPath, "utf8").split("\n");
+        lines.pop();
+        for (let i = lines.length - 1; i > 0; i--) {
+          const j = Math.floor(random() * (i + 1));
+          [lines[i], lines[j]] = [lines[j], lines[i]];
+        }
+        for (const line of lines) {
+          yield JSON.parse(line);
+        }
+      }
+      const seconds = Number(process.hrtime.bigint() - start) / 1e9;
+      debug(
+        `Shuffled ${rows} rows (${(bytes / 1e6).toFixed(1)}MB) through ${buckets} buckets at ` +
+          `${(bytes / 1e6 / seconds).toFixed(1)}MB/second`
+      );
+    } finally {
+      for (const stream of streams) {
+        stream.destroy();
+      }
+      fs.rmSync(directory, { recursive: true, force: true });
+    }
+  };
+}
+
+/**
+ * Streams the CSV dataset into a JSONL file, so memory use stays flat however large the dataset is.
+ * @param {string} csvFilePath
+ * @param {string} jsonlFilePath
+ * @param {object} options `dedup` drops repeated pairs, `dedupNear` is the Jaccard threshold above which pairs
+ * with near duplicate completions are collapsed, `tokenBudget` the most tokens of a row, with rows over it
+ * dropped or truncated depending on `overBudget`, `shuffleSeed` shuffles the rows with `shuffleRecords`, and
+ * `validationSplit` is the share of rows written to `validationFilePath` instead. Rows are assigned by a hash of their
+ * prompt and completion tokens, so the same rows end up in the validation file on every run, whatever rows are added
+ * to the dataset.
+ */
+async function convertCsvToJsonl(
+  csvFilePath,
+  jsonlFilePath,
+  { dedup = false, dedupNear, tokenBudget, overBudget, shuffleSeed, validationSplit, validationFilePath } = {}
+) {
+  if (validationSplit !== undefined && !(validationSplit > 0 && validationSplit < 1)) {
+    throw new Error(`The validation split must be between 0 and 1, e.g. 0.1 for 10%, not ${validationSplit}`);
+  }
+  const start = process.hrtime.bigint();
+  const parser = datasetCsvParser();
+  const stages = [];
+  if (dedup) {
+    stages.push(filterStage(createDeduplicator()));
+  }
+  if (dedupNear !== undefined) {
+    stages.push(filterStage(createNearDeduplicator({ threshold: dedupNear })));
+  }
+  if (tokenBudget !== undefined) {
+    stages.push(createTokenBudget({ maxTokens: tokenBudget, overBudget }));
+  }
+  const transforms = stages.map((stage) => mapRecords(stage.map));
+  if (shuffleSeed !== undefined) {
+    const buckets = Math.max(1, Math.ceil(fs.statSync(csvFilePath).size / SHUFFLE_BUCKET_BYTES));
+    transforms.push(shuffleRecords({ seed: shuffleSeed, buckets, directory: path.dirname(jsonlFilePath) }));
+  }
+  let validationRows = 0;
+  if (validationSplit !== undefined) {
+    const isValidation = ({ prompt, completion }) => {
+      const validation = pairDigest(prompt, completion || "").readUInt32LE(0) < validationSplit * 2 ** 32;
+      validationRows += validation ? 1 : 0;
+      return validation;
+    };
+    transforms.push(splitRecords(isValidation, fs.createWriteStream(validationFilePath)));
+  }
+  await pipeline(
+    fs.createReadStream(csvFilePath),
+    parser,
+    ...transforms,
+    toJsonLines(),
+    fs.createWriteStream(jsonlFilePath)
+  );
+  const rows = parser.info.records;
+  const seconds = Number(process.hrtime.bigint() - start) / 1e9;
+  debug(`Converted ${rows} rows at ${(rows / seconds).toFixed(1)} rows/second`);
+  if (validationSplit !== undefined) {
+    debug(`Wrote ${validationRows} rows to ${validationFilePath}`);
+  }
+  for (const stage of stages) {
+    stage.debugStats();
+  }
+}
+
+/**
+ * Creates a binary min-heap ordered by `compare`.
+ * @param {(a: any, b: any) => number} compare
+ */
+function createMinHeap(compare) {
+  const items = [];
+  return {
+    get size() {
+      return items.length;
+    },
+    push(item) {
+      items.push(item);
+      for (let i = items.length - 1; i > 0; ) {
+        const parent = (i - 1) >> 1;
+        if (compare(items[i], items[parent]) >= 0) {
+          break;
+        }
+        [items[i], items[parent]] = [items[parent], items[i]];
+        i = parent;
+      }
+    },
+    pop() {
+      const top = items[0];
+      const last = items.pop();
+      if (items.length > 0) {
+        items[0] = last;
+        for (let i = 0; ; ) {
+          const left = i * 2 + 1;
+          const right = left + 1;
+          let smallest = i;
+          if (left < items.length && compare(items[left], items[smallest]) < 0) {
+            smallest = left;
+          }
+          if (right < items.length && compare(items[right], items[smallest]) < 0) {
+            smallest = right;
+          }
+          if (smallest === i) {
+            break;
+          }
+          [items[i], items[smallest]] = [items[smallest], items[i]];
+          i = smallest;
+        }
+      }
+      return top;
+    },
+  };
+}
+
+/**
+ * Sorts the rows of dataset files by the hash of their prompt and completion into runs on disk, each holding at most
+ * `MERGE_RUN_BYTES` of rows, so inputs larger than memory can be merged. Repeated rows within a run are dropped.
+ * @param {string[]} filePaths CSV or JSONL dataset files
+ * @param {string} directory Where to write the runs
+ * @returns The paths of the runs, in input order, and the number of rows read
+ */
+async function writeSortedRuns(filePaths, directory) {
+  const runPaths = [];
+  let rows = [];
+  let runBytes = 0;
+  let rowsRead = 0;
+  const writeRun = async () => {
+    rows.sort((a, b) => (a.key < b.key ? -1 : a.key > b.key ? 1 : 0));
+    const runPath = path.join(directory, `${runPaths.length}.run`);
+    const stream = fs.createWriteStream(runPath);
+    for (let i = 0; i < rows.length; i++) {
+      if (i === 0 || rows[i].key !== rows[i - 1].key) {
+        if (!stream.write(rows[i].line)) {
+          await new Promise((resolve) => stream.once("drain", resolve));
+        }
+      }
+    }
+    await new Promise((resolve, reject) => stream.end((error) => (error ? reject(error) : resolve())));
+    runPaths.push(runPath);
+    rows = [];
+    runBytes = 0;
+  };
+  for (const filePath of filePaths) {
+    for await (const { prompt, completion = "" } of readDatasetRecords(filePath)) {
+      const key = pairDigest(prompt, completion).toString("hex");
+      const line = `${key}\t${JSON.stringify([prompt, completion])}\n`;
+      rows.push({ key, line });
+      rowsRead++;
+      runBytes += line.length;
+      if (runBytes >= MERGE_RUN_BYTES) {
+        await writeRun();
+      }
+    }
+  }
+  if (rows.length > 0) {
+    await writeRun();
+  }
+  return { runPaths, rowsRead };
+}
+
+/**
+ * Merges sorted runs with a min-heap, yielding the key and row of each key once. When a key is in several runs, the
+ * row of the earliest run is yielded.
+ * @param {string[]} runPaths Runs written by `writeSortedRuns`, in input order
+ */
+async function* mergeRuns(runPaths) {
+  const heap = createMinHeap((a, b) => (a.key < b.key ? -1 : a.key > b.key ? 1 : a.run - b.run));
+  const runs = runPaths.map((runPath) =>
+    readline.createInterface({ input: fs.createReadStream(runPath), crlfDelay: Infinity })[Symbol.asyncIterator]()
   );
+  const pushNext = async (run) => {
+    const { value, done } = await runs[run].next();
+    if (!done) {
+      const tab = value.indexOf("\t");
+      heap.push({ key: value.slice(0, tab), row: value.slice(tab + 1), run });
+    }
+  };
+  await Promise.all(runs.map((_, run) => pushNext(run)));
+  let previousKey;
+  while (heap.size > 0) {
+    const { key, row, run } = heap.pop();
+    if (key !== previousKey) {
+      yield { key, row };
+      previousKey = key;
+    }
+    await pushNext(run);
+  }
+}
+
+/**
+ * Merges dataset files into one, dropping repeated rows. The rows of the inputs are sorted by the hash of their prompt
+ * and completion tokens into runs on disk next to `outFilePath`, and the runs are merged with a min-heap, so repeats
+ * end up next to each other and are dropped in the same pass. Runs are merged `MERGE_FAN_IN` at a time into longer
+ * runs until that few are left, so the number of open files stays bounded. When rows repeat, the one from the
+ * earliest input is kept. The output is written to a temporary file and renamed over `outFilePath` once complete, so
+ * it can be one of the inputs.
+ * @param {string[]} filePaths CSV or JSONL dataset files
+ * @param {string} outFilePath CSV or JSONL file
+ */
+async function mergeDatasets(filePaths, outFilePath) {
+  const start = process.hrtime.bigint();
+  const directory = fs.mkdtempSync(path.join(path.dirname(outFilePath), ".merge-"));
+  const temporaryPath = `${outFilePath}.${process.pid}.tmp`;
+  try {
+    let { runPaths, rowsRead } = await writeSortedRuns(filePaths, directory);
+    const runCount = runPaths.length;
+    let passes = 1;
+    for (; runPaths.length > MERGE_FAN_IN; passes++) {
+      const mergedPaths = [];
+      // Consecutive runs are merged together, so the earliest input still wins in the next pass
+      for (let i = 0; i < runPaths.length; i += MERGE_FAN_IN) {
+        const group = runPaths.slice(i, i + MERGE_FAN_IN);
+        const mergedPath = path.join(directory, `${passes}-${mergedPaths.length}.run`);
+        await pipeline(async function* () {
+          for await (const { key, row } of mergeRuns(group)) {
+            yield `${key}\t${row}\n`;
+          }
+        }, fs.createWriteStream(mergedPath));
+        group.forEach((runPath) => fs.rmSync(runPath, { force: true }));
+        mergedPaths.push(mergedPath);
+      }
+      runPaths = mergedPaths;
+    }
+    const sink = createPairSink(temporaryPath, { format: path.extname(outFilePath) === ".jsonl" ? "jsonl" : "csv" });
+    for await (const { row } of mergeRuns(runPaths)) {
+      const [prompt, completion] = JSON.parse(row);
+      sink.emit(prompt, completion);
+      await sink.drain();
+    }
+    await sink.close();
+    fs.renameSync(temporaryPath, outFilePath);
+    const seconds = Number(process.hrtime.bigint() - start) / 1e9;
+    debug(
+      `Merged ${rowsRead} rows from ${filePaths.length} files in ${runCount} runs and ${passes} passes into ` +
+        `${sink.stats.rows} rows, dropping ${rowsRead - sink.stats.rows} repeats, at ` +
+        `${(rowsRead / seconds).toFixed(1)} rows/second`
+    );
+  } finally {
+    fs.rmSync(directory, { recursive: true, force: true });
+    fs.rmSync(temporaryPath, { force: true });
+  }
+}
+
+/**
+ * Uploads the JSONL dataset and creates a fine tune on it.
+ * @param {object} options `validation` also uploads the validation dataset, at the same time as the training one
+ */
+async function uploadDatasetAndFineTuneModel({ validation = false } = {}) {
+  const [uploadResponse, validationUploadResponse] = await Promise.all([
+    openai.createFile(fs.createReadStream(JSONL_DATASET_PATH), "fine-tune"),
+    validation ? openai.createFile(fs.createReadStream(JSONL_VALIDATION_PATH), "fine-tune") : undefined,
+  ]);
   const trainingFileId = uploadResponse.data.id;
   const createFineTuneResponse = await openai.createFineTune({
     model: "davinci",
     training_file: trainingFileId,
+    validation_file: validationUploadResponse ? validationUploadResponse.data.id : undefined,
   });
   const fineTuneId = createFineTuneResponse.data.id;
   const retrieveFineTuneResponse = await openai.retrieveFineTune(fineTuneId);
@@ -59,105 +1103,2497 @@ async function listFineTunes() {
 }
 
 /**
- * Stores a CSV file of the parsed source code in the `output/` directory.
- * @param {*} sourceCodeFilePath 
+ * Returns the TypeScript script kind to parse a source file with, inferred from its extension.
+ * @param {string} sourceCodeFilePath
  */
-function parseSourcecode(sourceCodeFilePath) {
-  const program = typescript.createProgram([sourceCodeFilePath], { allowJs: true});
-  const printer = typescript.createPrinter({ newLine: typescript.NewLineKind.LineFeed });
-  const sourceFile = program.getSourceFile(sourceCodeFilePath);
-  debug(`Parsing ${sourceCodeFilePath}...`);
-  parseNode(sourceFile);
-  function parseNode(node) {
-    const completion = printer.printNode(typescript.EmitHint.Unspecified, node, sourceFile);
-    const prompts = [];
-
-    // console.log(node);
-    if (typescript.isArrowFunction(node)) {
-
-      // console.log(Object.keys(node));
-      const params = node.parameters.map(node => node.name.escapedText).join(", ");
-      if (node.parameters.length === 0) {
-        prompts.push("function");
-        prompts.push("function with no parameters");
-      } else if (node.parameters.length === 1) {
-        prompts.push(`function with ${params} parameter`);
-      } else {
-        prompts.push(`function with ${params} parameters`);
-      }
-    }
-
-    for (const prompt of prompts) {
-      // TODO: save this to a CSV file
-      console.log(`"${prompt}","${completion}"\n`);
-    }
-
-    typescript.forEachChild(node, parseNode);
+function scriptKindFor(sourceCodeFilePath) {
+  const typescript = loadTypescript();
+  switch (path.extname(sourceCodeFilePath).toLowerCase()) {
+    case ".ts":
+    case ".mts":
+    case ".cts":
+      return typescript.ScriptKind.TS;
+    case ".tsx":
+      return typescript.ScriptKind.TSX;
+    case ".jsx":
+      return typescript.ScriptKind.JSX;
+    default:
+      return typescript.ScriptKind.JS;
   }
 }
 
 /**
- * Returns the completion generated from OpenAI GPT-3 using any model given the prompt.
- * @param {string} model The fine tune id or the id of another model
- * @param {string} prompt The prompt to generate the code completion for
- * @returns 
- */
-async function generateCode(model, prompt) {
-  return openai.createCompletion({ model, prompt });
-}
-
-debug("Fine Tuning GPT-3");
-yargs(hideBin(process.argv))
-  .command(
-    "list",
-    "list the fine tunes and their status",
-    {},
-    () => {
-      debug("Listing fine tunes");
-      listFineTunes();
-    }
-  )
-  .command(
-    "generate <model> <prompt>",
-    "Generates code using the fine-tuned model given a prompt",
-    {},
-    (argv) => {
-      debug("Generating code");
-      generateCode(argv.model, argv.prompt).then((completion) => {
-        console.log(completion.data.choices[0].text);
+ * Parses only the syntax tree of a source file. No imports are resolved and no default lib files are loaded.
+ * @param {string} sourceCodeFilePath
+ * @param {string} text The contents of the file, read from disk when not given
+ */
+function createSyntaxSourceFile(sourceCodeFilePath, text = fs.readFileSync(sourceCodeFilePath, "utf8")) {
+  const typescript = loadTypescript();
+  return typescript.createSourceFile(
+    sourceCodeFilePath,
+    text,
+    typescript.ScriptTarget.Latest,
+    true,
+    scriptKindFor(sourceCodeFilePath)
+  );
+}
+
+/**
+ * Builds a full program for a source file and returns its source file. This resolves imports and loads the
+ * default lib files, so it is much slower than `createSyntaxSourceFile` and only used when asked for.
+ * @param {string} sourceCodeFilePath
+ */
+function createProgramSourceFile(sourceCodeFilePath) {
+  const typescript = loadTypescript();
+  const program = typescript.createProgram([sourceCodeFilePath], { allowJs: true });
+  return program.getSourceFile(sourceCodeFilePath);
+}
+
+/**
+ * Quotes a CSV field when it contains a quote, comma or line break, doubling any quotes, like `data/dataset.csv`.
+ * @param {string} field
+ */
+function csvField(field) {
+  return /[",\r\n]/.test(field) ? `"${field.replace(/"/g, '""')}"` : field;
+}
+
+function printPair(prompt, completion) {
+  console.log(`${csvField(prompt)},${csvField(completion)}`);
+}
+
+/**
+ * Creates a sink writing prompt and completion pairs to a CSV file with a `prompt,completion` header, or a JSONL
+ * file, or stdout when the path is `-`. Pairs written in the same tick are corked together so they reach the file
+ * in a single `writev`. `drain` resolves once the file has caught up, so writers can respect backpressure.
+ * @param {string} filePath
+ * @param {object} options `format` is `csv` or `jsonl`, inferred from the extension when not given
+ */
+function createPairSink(filePath, { format } = {}) {
+  format = format || (path.extname(filePath) === ".jsonl" ? "jsonl" : "csv");
+  const stream = filePath === "-" ? process.stdout : fs.createWriteStream(filePath);
+  const encode = format === "jsonl"
+    ? (prompt, completion) => JSON.stringify({ prompt, completion }) + "\n"
+    : (prompt, completion) => `${csvField(prompt)},${csvField(completion)}\n`;
+  const stats = { rows: 0, bytes: 0 };
+  let corked = false;
+  let needsDrain = false;
+
+  function write(chunk) {
+    if (!corked) {
+      corked = true;
+      stream.cork();
+      process.nextTick(() => {
+        corked = false;
+        stream.uncork();
       });
     }
-  )
-  .command(
-    ["upload", "$0"],
-    "upload the dataset after converting it to JSONL from CSV and create a fine tuned model",
-    {},
-    () => {
-      debug("Uploading dataset and fine tuning model");
-      convertCsvToJsonl(CSV_DATASET_PATH, JSONL_DATASET_PATH);
-      uploadDatasetAndFineTuneModel().then((fineTuneId) => {
-        console.log(`Fine tune id: ${fineTuneId}`);
-      });
+    stats.bytes += Buffer.byteLength(chunk);
+    needsDrain = !stream.write(chunk) || needsDrain;
+  }
+
+  if (format === "csv") {
+    write("prompt,completion\n");
+  }
+  return {
+    stats,
+    emit(prompt, completion) {
+      stats.rows++;
+      write(encode(prompt, completion));
+    },
+    async drain() {
+      if (needsDrain) {
+        needsDrain = false;
+        await new Promise((resolve) => stream.once("drain", resolve));
+      }
+    },
+    async close() {
+      if (stream !== process.stdout) {
+        await new Promise((resolve, reject) => stream.end((error) => (error ? reject(error) : resolve())));
+      }
+    },
+  };
+}
+
+/**
+ * Returns a function producing the completion text for a node. The `slice` mode takes the original source text
+ * of the node, preserving its formatting, while the `print` mode re-emits the node with the TypeScript printer.
+ * @param {typescript.SourceFile} sourceFile
+ * @param {"print"|"slice"} mode
+ */
+function completionTextFor(sourceFile, mode) {
+  if (mode === "slice") {
+    return (node) => sourceFile.text.slice(node.getStart(sourceFile), node.end);
+  }
+  const typescript = loadTypescript();
+  const printer = typescript.createPrinter({ newLine: typescript.NewLineKind.LineFeed });
+  return (node) => printer.printNode(typescript.EmitHint.Unspecified, node, sourceFile);
+}
+
+/**
+ * Stores a CSV file of the parsed source code in the `output/` directory.
+ * @param {*} sourceCodeFilePath 
+ * @param {object} options `program` parses with a full program instead of syntax only, `text` is the already read
+ * source, and the rest is passed through to `extractFromSourceFile`
+ */
+function parseSourcecode(sourceCodeFilePath, { program = false, text, ...extractOptions } = {}) {
+  const sourceFile = program
+    ? createProgramSourceFile(sourceCodeFilePath)
+    : createSyntaxSourceFile(sourceCodeFilePath, text);
+  debug(`Parsing ${sourceCodeFilePath}...`);
+  extractFromSourceFile(sourceFile, extractOptions);
+}
+
+/**
+ * Returns the prompt for the parameters of a function, e.g. `with name parameter`.
+ * @param {typescript.NodeArray<typescript.ParameterDeclaration>} parameters
+ * @param {typescript.SourceFile} sourceFile
+ */
+function parametersPrompt(parameters, sourceFile) {
+  const names = parameters.map((parameter) => parameter.name.getText(sourceFile)).join(", ");
+  if (parameters.length === 0) {
+    return "with no parameters";
+  }
+  return parameters.length === 1 ? `with ${names} parameter` : `with ${names} parameters`;
+}
+
+const SAGA_EFFECT = /\byield\s+(?:call|put|take|takeEvery|takeLatest|fork|spawn|select|all|race|delay|cps|apply)\s*\(/;
+const NODE_ENV_GUARD = /^(?:process\.env\.NODE_ENV(!==?|===?)(['"])production\2|(['"])production\3(!==?|===?)process\.env\.NODE_ENV)$/;
+
+/**
+ * Returns the extraction rules. Each rule registers for the syntax kinds of the nodes it produces prompts for, so
+ * finding the rules for a node is a single lookup.
+ * @param {typeof import("typescript")} typescript
+ */
+function createExtractionRules(typescript) {
+  const { SyntaxKind } = typescript;
+  const nameOf = (node, sourceFile) => (node.name ? node.name.getText(sourceFile) : undefined);
+  return [
+    {
+      name: "arrow function",
+      kinds: [SyntaxKind.ArrowFunction],
+      prompts(node, sourceFile) {
+        const prompt = `function ${parametersPrompt(node.parameters, sourceFile)}`;
+        return node.parameters.length === 0 ? ["function", prompt] : [prompt];
+      },
+    },
+    {
+      name: "function",
+      kinds: [SyntaxKind.FunctionDeclaration, SyntaxKind.FunctionExpression],
+      prompts(node, sourceFile) {
+        const name = nameOf(node, sourceFile);
+        if (!name) {
+          return [];
+        }
+        const prompt = `function ${name} ${parametersPrompt(node.parameters, sourceFile)}`;
+        return node.asteriskToken ? [prompt, `generator function ${name}`] : [prompt];
+      },
+    },
+    {
+      name: "saga",
+      kinds: [SyntaxKind.FunctionDeclaration, SyntaxKind.FunctionExpression],
+      prompts(node, sourceFile) {
+        const name = nameOf(node, sourceFile);
+        if (!name || !node.asteriskToken || !SAGA_EFFECT.test(sourceFile.text.slice(node.pos, node.end))) {
+          return [];
+        }
+        return [`saga ${name}`];
+      },
+    },
+    {
+      name: "method",
+      kinds: [SyntaxKind.MethodDeclaration],
+      prompts(node, sourceFile) {
+        const name = nameOf(node, sourceFile);
+        // Parents are only set when parsing syntax only, not on the source files of a program
+        const className = node.parent ? nameOf(node.parent, sourceFile) : undefined;
+        const prompt = `method ${name} ${parametersPrompt(node.parameters, sourceFile)}`;
+        return className ? [prompt, `method ${name} of class ${className}`] : [prompt];
+      },
+    },
+    {
+      name: "class",
+      kinds: [SyntaxKind.ClassDeclaration, SyntaxKind.ClassExpression],
+      prompts(node, sourceFile) {
+        const name = nameOf(node, sourceFile);
+        if (!name) {
+          return [];
+        }
+        const extendsClause = (node.heritageClauses || []).find((clause) => clause.token === SyntaxKind.ExtendsKeyword);
+        return extendsClause
+          ? [`class ${name}`, `class ${name} extending ${extendsClause.types[0].expression.getText(sourceFile)}`]
+          : [`class ${name}`];
+      },
+    },
+    {
+      name: "loop",
+      kinds: [
+        SyntaxKind.ForStatement,
+        SyntaxKind.ForOfStatement,
+        SyntaxKind.ForInStatement,
+        SyntaxKind.WhileStatement,
+        SyntaxKind.DoStatement,
+      ],
+      prompts(node, sourceFile) {
+        switch (node.kind) {
+          case SyntaxKind.ForStatement:
+            return ["for loop"];
+          case SyntaxKind.ForOfStatement:
+            return ["for of loop", `for of loop over ${node.expression.getText(sourceFile)}`];
+          case SyntaxKind.ForInStatement:
+            return ["for in loop", `for in loop over ${node.expression.getText(sourceFile)}`];
+          case SyntaxKind.WhileStatement:
+            return ["while loop"];
+          default:
+            return ["do while loop"];
+        }
+      },
+    },
+    {
+      name: "environment guard",
+      kinds: [SyntaxKind.IfStatement],
+      prompts(node, sourceFile) {
+        // Compound guards like `process.env.NODE_ENV !== 'production' && arguments.length` start with the comparison
+        let condition = node.expression;
+        while (
+          typescript.isBinaryExpression(condition) &&
+          condition.operatorToken.kind === SyntaxKind.AmpersandAmpersandToken
+        ) {
+          condition = condition.left;
+        }
+        const match = NODE_ENV_GUARD.exec(condition.getText(sourceFile).replace(/\s+/g, ""));
+        if (!match) {
+          return [];
+        }
+        const environments = (match[1] || match[4]).startsWith("!") ? "non production environments" : "production environments";
+        const prompts = [`in ${environments}`];
+        if (/\bthrow\b/.test(node.thenStatement.getText(sourceFile))) {
+          prompts.push(`throw an error in ${environments}`);
+        }
+        return prompts;
+      },
+    },
+  ];
+}
+
+let extractionRules;
+
+/**
+ * Returns the extraction rules by syntax kind.
+ */
+function loadExtractionRules() {
+  if (!extractionRules) {
+    const typescript = loadTypescript();
+    const byKind = new Map();
+    for (const rule of createExtractionRules(typescript)) {
+      for (const kind of rule.kinds) {
+        byKind.set(kind, (byKind.get(kind) || []).concat(rule));
+      }
+    }
+    extractionRules = { byKind };
+  }
+  return extractionRules;
+}
+
+/**
+ * Categories of subtrees that can never produce a prompt, and so can be skipped by `walkSyntaxTree`, with the syntax
+ * kinds at their roots.
+ */
+const SKIP_CATEGORIES = {
+  types: ({ SyntaxKind }) => [
+    SyntaxKind.InterfaceDeclaration,
+    SyntaxKind.TypeAliasDeclaration,
+    ...Array.from(
+      { length: SyntaxKind.LastTypeNode - SyntaxKind.FirstTypeNode + 1 },
+      (_, i) => SyntaxKind.FirstTypeNode + i
+    ),
+  ],
+  imports: ({ SyntaxKind }) => [SyntaxKind.ImportDeclaration, SyntaxKind.ImportEqualsDeclaration],
+  literals: ({ SyntaxKind }) => [
+    SyntaxKind.StringLiteral,
+    SyntaxKind.NumericLiteral,
+    SyntaxKind.BigIntLiteral,
+    SyntaxKind.RegularExpressionLiteral,
+    SyntaxKind.NoSubstitutionTemplateLiteral,
+  ],
+  "jsx-text": ({ SyntaxKind }) => [SyntaxKind.JsxText],
+};
+const DEFAULT_SKIP = Object.keys(SKIP_CATEGORIES);
+const DEFAULT_MAX_DEPTH = 10000;
+
+const skippedKindsByCategories = new Map();
+
+/**
+ * Returns the syntax kinds at the roots of the subtrees in the given `SKIP_CATEGORIES`.
+ * @param {string[]} categories
+ */
+function skippedKindsFor(categories) {
+  const key = categories.join(",");
+  if (!skippedKindsByCategories.has(key)) {
+    const typescript = loadTypescript();
+    skippedKindsByCategories.set(key, new Set(categories.flatMap((category) => SKIP_CATEGORIES[category](typescript))));
+  }
+  return skippedKindsByCategories.get(key);
+}
+
+/**
+ * Visits the nodes of a syntax tree in pre-order, the same order as recursing with `typescript.forEachChild`, but on
+ * an explicit stack so deeply nested code cannot overflow the call stack.
+ * @param {typescript.Node} root
+ * @param {(node: typescript.Node, depth: number) => void} visit
+ * @param {object} options `skippedKinds` are not visited nor descended into, `maxDepth` is the deepest level visited
+ * and `range` limits the walk to nodes overlapping the `[start, end]` text range
+ * @returns The number of nodes visited, subtrees skipped and subtrees cut off by `maxDepth`
+ */
+function walkSyntaxTree(root, visit, { skippedKinds = new Set(), maxDepth = Infinity, range } = {}) {
+  const typescript = loadTypescript();
+  const stats = { nodes: 0, skipped: 0, depthLimited: 0 };
+  const nodes = [root];
+  const depths = [0];
+  const children = [];
+  // forEachChild stops at the first truthy return value, so the callback must not return the new length
+  const collect = (child) => {
+    children.push(child);
+  };
+  while (nodes.length > 0) {
+    const node = nodes.pop();
+    const depth = depths.pop();
+    if (range && (node.end < range[0] || node.pos > range[1])) {
+      continue;
+    }
+    if (skippedKinds.has(node.kind)) {
+      stats.skipped++;
+      continue;
+    }
+    if (depth > maxDepth) {
+      stats.depthLimited++;
+      continue;
+    }
+    stats.nodes++;
+    visit(node, depth);
+    typescript.forEachChild(node, collect);
+    for (let i = children.length - 1; i >= 0; i--) {
+      nodes.push(children[i]);
+      depths.push(depth + 1);
+    }
+    children.length = 0;
+  }
+  return stats;
+}
+
+/**
+ * Emits the prompt and completion pairs of a parsed source file. The rules registered for the kind of each node
+ * produce its prompts, and subtrees in the `skip` categories, which can never produce a prompt, are not visited.
+ * @param {typescript.SourceFile} sourceFile
+ * @param {object} options `completion` is the `completionTextFor` mode, `emit` receives each prompt and completion,
+ * `range` limits the pairs to nodes overlapping the `[start, end]` text range, `skip` and `maxDepth` are as for
+ * `walkSyntaxTree`, `nested` is `suppress` to leave out pairs of nodes inside a node that already produced a pair,
+ * `maxFileBytes` caps the bytes of the pairs of the file, `ruleStats` collects the hits and time spent per rule and
+ * `traversalStats` the nodes visited and pairs suppressed
+ */
+function extractFromSourceFile(
+  sourceFile,
+  {
+    completion: completionMode = "print",
+    emit = printPair,
+    range,
+    skip = DEFAULT_SKIP,
+    maxDepth = DEFAULT_MAX_DEPTH,
+    nested = "keep",
+    maxFileBytes = Infinity,
+    ruleStats,
+    traversalStats,
+  } = {}
+) {
+  const { byKind } = loadExtractionRules();
+  const completionText = completionTextFor(sourceFile, completionMode);
+  let suppressed = 0;
+  let suppressedChars = 0;
+  let emittedBytes = 0;
+  // Nodes are visited in pre-order, so a node starting before the end of the outermost node that produced a pair
+  // lies inside of it
+  let emittedSpanEnd = -1;
+  const walkStats = walkSyntaxTree(sourceFile, parseNode, { skippedKinds: skippedKindsFor(skip), maxDepth, range });
+  const stats = { ...walkStats, suppressed, suppressedChars };
+  if (stats.depthLimited > 0) {
+    debug(`Skipped ${stats.depthLimited} subtrees nested deeper than ${maxDepth} in ${sourceFile.fileName}`);
+  }
+  if (traversalStats) {
+    for (const [name, count] of Object.entries(stats)) {
+      traversalStats[name] = (traversalStats[name] || 0) + count;
     }
-  )
-  .command(
-    "parse <sourceCodeFilePath>",
-    "Parses a JavaScript or TypeScript file or directory into a CSV that can be added to the dataset.csv file",
-    {},
-    (argv) => {
-      if (fs.lstatSync(argv.sourceCodeFilePath).isDirectory()) {
-        debug("Parsing source code in directory: " + argv.sourceCodeFilePath);
-        for (const file of fs.readdirSync(argv.sourceCodeFilePath)) { 
-          debug("Checking whether to parse file: " + file);
-          if (path.extname(file) === ".js" || path.extname(file) === ".ts") {
-            debug("Parsing source code file: " + file);
-            parseSourcecode(path.join(argv.sourceCodeFilePath, file));
+  }
+  function parseNode(node) {
+    const rules = byKind.get(node.kind);
+    if (rules) {
+      // The completion is only produced once a prompt applies, most nodes never need one
+      let completion;
+      const contained = node.pos < emittedSpanEnd;
+      for (const rule of rules) {
+        const start = ruleStats ? process.hrtime.bigint() : undefined;
+        const prompts = rule.prompts(node, sourceFile);
+        if (ruleStats) {
+          const stats = ruleStats[rule.name] || (ruleStats[rule.name] = { hits: 0, ns: 0 });
+          stats.hits += prompts.length;
+          stats.ns += Number(process.hrtime.bigint() - start);
+        }
+        for (const prompt of prompts) {
+          if (contained || emittedBytes >= maxFileBytes) {
+            suppressed++;
+            suppressedChars += node.end - node.getStart(sourceFile);
+            continue;
           }
+          completion = completion === undefined ? completionText(node) : completion;
+          emittedBytes += Buffer.byteLength(prompt) + Buffer.byteLength(completion);
+          emit(prompt, completion);
+        }
+      }
+      if (nested === "suppress" && completion !== undefined && node.end > emittedSpanEnd) {
+        emittedSpanEnd = node.end;
+      }
+    }
+  }
+}
+
+const SOURCE_EXTENSIONS = new Set([".js", ".jsx", ".mjs", ".cjs", ".ts", ".tsx", ".mts", ".cts"]);
+const SKIPPED_DIRECTORIES = new Set(["node_modules", ".git"]);
+
+/**
+ * Compiles a glob into a regular expression matching forward slash separated paths. `**` matches any number of
+ * directories, `*` and `?` match within a single path segment and `[...]` matches a character class.
+ * @param {string} glob
+ */
+function globToRegExp(glob) {
+  let source = "";
+  for (let i = 0; i < glob.length; i++) {
+    const char = glob[i];
+    if (char === "*" && glob[i + 1] === "*") {
+      i++;
+      if (glob[i + 1] === "/") {
+        i++;
+        source += "(?:.*/)?";
+      } else {
+        source += ".*";
+      }
+    } else if (char === "*") {
+      source += "[^/]*";
+    } else if (char === "?") {
+      source += "[^/]";
+    } else if (char === "[" && glob.indexOf("]", i + 1) !== -1) {
+      const end = glob.indexOf("]", i + 1);
+      source += "[" + glob.slice(i + 1, end).replace(/^!/, "^").replace(/\\/g, "\\\\") + "]";
+      i = end;
+    } else {
+      source += char.replace(/[.+^${}()|\\\]\[]/g, "\\$&");
+    }
+  }
+  return new RegExp(`^${source}$`);
+}
+
+/**
+ * Returns a matcher for a glob. Globs without a slash match the name of a file or directory at any depth, the
+ * others match its whole path relative to where the walk started.
+ * @param {string} glob
+ */
+function createGlobMatcher(glob) {
+  const regExp = globToRegExp(glob.replace(/^\//, ""));
+  if (glob.includes("/")) {
+    return (relativePath) => regExp.test(relativePath);
+  }
+  return (relativePath) => regExp.test(path.posix.basename(relativePath));
+}
+
+/**
+ * Parses the rules of a `.gitignore` file found in the `base` directory, relative to where the walk started.
+ * @param {string} text
+ * @param {string} base
+ */
+function parseGitignore(text, base) {
+  const rules = [];
+  for (let line of text.split(/\r?\n/)) {
+    line = line.replace(/(?<!\\)\s+$/, "");
+    if (line === "" || line.startsWith("#")) {
+      continue;
+    }
+    const negate = line.startsWith("!");
+    line = line.replace(/^[!\\]/, "");
+    const directoryOnly = line.endsWith("/");
+    line = line.replace(/\/$/, "");
+    rules.push({ base, negate, directoryOnly, matches: createGlobMatcher(line) });
+  }
+  return rules;
+}
+
+/**
+ * Returns whether the `.gitignore` rules ignore a path. Later rules override earlier ones, like in git.
+ * @param {object[]} rules From `parseGitignore`, outermost directory first
+ * @param {string} relativePath
+ * @param {boolean} isDirectory
+ */
+function isGitignored(rules, relativePath, isDirectory) {
+  let ignored = false;
+  for (const rule of rules) {
+    if (rule.directoryOnly && !isDirectory) {
+      continue;
+    }
+    const pathFromBase = rule.base === "" ? relativePath : relativePath.slice(rule.base.length + 1);
+    if (rule.matches(pathFromBase)) {
+      ignored = !rule.negate;
+    }
+  }
+  return ignored;
+}
+
+/**
+ * Returns functions telling whether a path relative to where the walk started is excluded by the `exclude` globs
+ * and whether a file is included by the `include` globs, all files being included when there are none.
+ * @param {object} options `include` and `exclude` globs
+ */
+function createPathFilter({ include = [], exclude = [] }) {
+  const includes = include.map(createGlobMatcher);
+  const excludes = exclude.map(createGlobMatcher);
+  return {
+    isExcluded: (relativePath, isDirectory) =>
+      excludes.some((matches) => matches(relativePath) || (isDirectory && matches(relativePath + "/"))),
+    isIncluded: (relativePath) => includes.length === 0 || includes.some((matches) => matches(relativePath)),
+  };
+}
+
+/**
+ * Walks a directory recursively and yields the JavaScript and TypeScript files to parse as they are found, or just
+ * the file itself when given a file. Only the directories still to visit and the real paths of those visited are
+ * kept in memory, never the list of files. Symbolic links are followed, visiting each directory once so links back
+ * up the tree do not loop. `node_modules` and `.git` are always skipped and `.gitignore` files are honoured.
+ * @param {string} sourceCodeFilePath A file or directory
+ * @param {object} options `include` and `exclude` globs, and `gitignore` false to not read `.gitignore` files
+ */
+async function* walkSourceFiles(sourceCodeFilePath, { include = [], exclude = [], gitignore = true } = {}) {
+  if (!(await fs.promises.stat(sourceCodeFilePath)).isDirectory()) {
+    yield sourceCodeFilePath;
+    return;
+  }
+  const filter = createPathFilter({ include, exclude });
+  const isExcluded = (relativePath, isDirectory, rules) =>
+    filter.isExcluded(relativePath, isDirectory) || isGitignored(rules, relativePath, isDirectory);
+  const isIncluded = filter.isIncluded;
+  const pending = [{ directory: sourceCodeFilePath, rules: [] }];
+  const visited = new Set();
+
+  while (pending.length > 0) {
+    const next = pending.pop();
+    const realPath = await fs.promises.realpath(next.directory);
+    if (visited.has(realPath)) {
+      continue;
+    }
+    visited.add(realPath);
+    let rules = next.rules;
+    const base = path.relative(sourceCodeFilePath, next.directory).split(path.sep).join("/");
+    if (gitignore) {
+      try {
+        const text = await fs.promises.readFile(path.join(next.directory, ".gitignore"), "utf8");
+        rules = rules.concat(parseGitignore(text, base));
+      } catch {}
+    }
+    for await (const entry of await fs.promises.opendir(next.directory)) {
+      const relativePath = base === "" ? entry.name : `${base}/${entry.name}`;
+      let isDirectory = entry.isDirectory();
+      let isFile = entry.isFile();
+      if (entry.isSymbolicLink()) {
+        // Links to nothing are skipped
+        const stat = await fs.promises.stat(path.join(next.directory, entry.name)).catch(() => null);
+        isDirectory = Boolean(stat && stat.isDirectory());
+        isFile = Boolean(stat && stat.isFile());
+      }
+      if (isDirectory) {
+        if (!SKIPPED_DIRECTORIES.has(entry.name) && !isExcluded(relativePath, true, rules)) {
+          pending.push({ directory: path.join(next.directory, entry.name), rules });
+        }
+      } else if (isFile && SOURCE_EXTENSIONS.has(path.extname(entry.name).toLowerCase())) {
+        if (!isExcluded(relativePath, false, rules) && isIncluded(relativePath)) {
+          yield path.join(next.directory, entry.name);
+        }
+      }
+    }
+  }
+}
+
+/**
+ * Returns the prompt and completion pairs of a source file. Pairs are cached under `data/output/cache/parse`, keyed
+ * on a hash of the file contents, the script kind it is parsed as, the parse options and `EXTRACTOR_VERSION`, so
+ * unchanged files are not parsed again.
+ * @param {string} sourceCodeFilePath
+ * @param {object} options `cache` is false to always parse the file, the rest is passed through to `parseSourcecode`
+ * @returns The pairs, whether they came from the cache and the `ruleStats` and `traversalStats` of
+ * `extractFromSourceFile` when not
+ */
+function extractPairs(sourceCodeFilePath, { cache = true, emit, drain, ...parseOptions } = {}) {
+  const text = fs.readFileSync(sourceCodeFilePath, "utf8");
+  const key = crypto
+    .createHash("sha256")
+    .update(JSON.stringify([EXTRACTOR_VERSION, scriptKindFor(sourceCodeFilePath), sortedParams(parseOptions)]))
+    .update(text)
+    .digest("hex");
+  const cachePath = path.join(PARSE_CACHE_PATH, key.slice(0, 2), `${key}.json`);
+  if (cache) {
+    try {
+      return { pairs: JSON.parse(fs.readFileSync(cachePath, "utf8")), cached: true };
+    } catch (error) {
+      if (error.code !== "ENOENT") {
+        debug(`Ignoring unreadable parse cache entry ${cachePath}: ${error.message}`);
+      }
+    }
+  }
+  const pairs = [];
+  const ruleStats = {};
+  const traversalStats = {};
+  parseSourcecode(sourceCodeFilePath, {
+    ...parseOptions,
+    text,
+    ruleStats,
+    traversalStats,
+    emit: (prompt, completion) => pairs.push([prompt, completion]),
+  });
+  if (cache) {
+    fs.mkdirSync(path.dirname(cachePath), { recursive: true });
+    fs.writeFileSync(`${cachePath}.${process.pid}.${threadId}.tmp`, JSON.stringify(pairs));
+    fs.renameSync(`${cachePath}.${process.pid}.${threadId}.tmp`, cachePath);
+  }
+  return { pairs, cached: false, ruleStats, traversalStats };
+}
+
+/**
+ * Returns the smallest text change range turning `oldText` into `newText`, found from their common prefix and suffix.
+ * @param {string} oldText
+ * @param {string} newText
+ */
+function textChangeRange(oldText, newText) {
+  const maxLength = Math.min(oldText.length, newText.length);
+  let prefix = 0;
+  while (prefix < maxLength && oldText.charCodeAt(prefix) === newText.charCodeAt(prefix)) {
+    prefix++;
+  }
+  let suffix = 0;
+  while (
+    suffix < maxLength - prefix &&
+    oldText.charCodeAt(oldText.length - 1 - suffix) === newText.charCodeAt(newText.length - 1 - suffix)
+  ) {
+    suffix++;
+  }
+  return {
+    span: { start: prefix, length: oldText.length - prefix - suffix },
+    newLength: newText.length - prefix - suffix,
+  };
+}
+
+/**
+ * Returns the pairs in `added` that are not in `removed`, and the other way around, counting repeated pairs.
+ * @param {string[][]} removed
+ * @param {string[][]} added
+ */
+function diffPairs(removed, added) {
+  const counts = new Map();
+  for (const pair of removed) {
+    const key = JSON.stringify(pair);
+    counts.set(key, (counts.get(key) || 0) - 1);
+  }
+  for (const pair of added) {
+    const key = JSON.stringify(pair);
+    counts.set(key, (counts.get(key) || 0) + 1);
+  }
+  const result = { removed: [], added: [] };
+  for (const [key, count] of counts) {
+    for (let i = 0; i < Math.abs(count); i++) {
+      (count < 0 ? result.removed : result.added).push(JSON.parse(key));
+    }
+  }
+  return result;
+}
+
+/**
+ * Parses the source files and keeps re-parsing them as they change. Every pair is emitted as added at first, and
+ * after that only the pairs added and removed by each change. Parsed source files are kept in memory and updated
+ * incrementally with `typescript.updateSourceFile`, and only the nodes overlapping the changed text are visited.
+ * New files are picked up when they match the walk options, without checking `.gitignore` files.
+ * @param {string} sourceCodeFilePath A file or directory
+ * @param {object} options `walk` options for `walkSourceFiles`, `completion`, `skip`, `maxDepth` and `nested` as for
+ * `extractFromSourceFile` and `emit` receiving the change (`add` or `remove`), file, prompt and completion
+ */
+async function watchSourceFiles(sourceCodeFilePath, { walk, completion, skip, maxDepth, nested, emit }) {
+  const typescript = loadTypescript();
+  const sourceFiles = new Map();
+  const directories = new Set();
+  const collectPairs = (sourceFile, range) => {
+    const pairs = [];
+    extractFromSourceFile(sourceFile, {
+      completion,
+      skip,
+      maxDepth,
+      nested,
+      range,
+      emit: (prompt, text) => pairs.push([prompt, text]),
+    });
+    return pairs;
+  };
+  // Files are keyed on their absolute path, so `./index.js` and the `index.js` of a change event are the same file
+  const emitPairs = (change, file, pairs) => {
+    for (const [prompt, text] of pairs) {
+      emit({ change, file: path.relative(process.cwd(), file), prompt, completion: text });
+    }
+  };
+
+  const isDirectory = fs.statSync(sourceCodeFilePath).isDirectory();
+  const root = path.resolve(sourceCodeFilePath);
+  for await (const walkedFile of walkSourceFiles(sourceCodeFilePath, walk)) {
+    const file = path.resolve(walkedFile);
+    const sourceFile = createSyntaxSourceFile(file);
+    sourceFiles.set(file, sourceFile);
+    for (let directory = path.dirname(file); isDirectory && directory.startsWith(root); ) {
+      directories.add(directory);
+      directory = directory === root ? "" : path.dirname(directory);
+    }
+    emitPairs("add", file, collectPairs(sourceFile));
+  }
+
+  function update(file) {
+    const start = process.hrtime.bigint();
+    const sourceFile = sourceFiles.get(file);
+    let text;
+    try {
+      text = fs.readFileSync(file, "utf8");
+    } catch (error) {
+      if (error.code !== "ENOENT" || !sourceFile) {
+        return;
+      }
+      sourceFiles.delete(file);
+      emitPairs("remove", file, collectPairs(sourceFile));
+      debug(`Removed ${file}`);
+      return;
+    }
+    if (!sourceFile) {
+      const newSourceFile = createSyntaxSourceFile(file, text);
+      sourceFiles.set(file, newSourceFile);
+      emitPairs("add", file, collectPairs(newSourceFile));
+      debug(`Added ${file}`);
+      return;
+    }
+    if (text === sourceFile.text) {
+      return;
+    }
+    const change = textChangeRange(sourceFile.text, text);
+    const { start: changeStart, length } = change.span;
+    // The pairs of the old source file have to be collected first, updating it may reuse its nodes
+    const removed = collectPairs(sourceFile, [changeStart, changeStart + length]);
+    const updatedSourceFile = typescript.updateSourceFile(sourceFile, text, change);
+    sourceFiles.set(file, updatedSourceFile);
+    const added = collectPairs(updatedSourceFile, [changeStart, changeStart + change.newLength]);
+    const diff = diffPairs(removed, added);
+    emitPairs("remove", file, diff.removed);
+    emitPairs("add", file, diff.added);
+    const elapsedMs = Number(process.hrtime.bigint() - start) / 1e6;
+    debug(`Updated ${file} in ${elapsedMs.toFixed(1)}ms: ${diff.removed.length} removed, ${diff.added.length} added`);
+  }
+
+  const filter = createPathFilter(walk);
+  const isWatchedPath = (file, isFile) => {
+    const relativePath = path.relative(root, file).split(path.sep).join("/");
+    const segments = relativePath.split("/");
+    const isExcluded = (segment, i) =>
+      SKIPPED_DIRECTORIES.has(segment) ||
+      filter.isExcluded(segments.slice(0, i + 1).join("/"), !isFile || i < segments.length - 1);
+    return (
+      !segments.some(isExcluded) &&
+      (!isFile || (SOURCE_EXTENSIONS.has(path.extname(file).toLowerCase()) && filter.isIncluded(relativePath)))
+    );
+  };
+  // Editors often write a file in several steps, so changes are picked up once they settle
+  const timers = new Map();
+  const schedule = (file) => {
+    clearTimeout(timers.get(file));
+    timers.set(file, setTimeout(() => {
+      timers.delete(file);
+      update(file);
+    }, 10));
+  };
+
+  if (!isDirectory) {
+    // Saving through a temporary file replaces the watched file, so the watch is set up again after a rename
+    const watchFile = () => {
+      const watcher = fs.watch(root, (eventType) => {
+        schedule(root);
+        if (eventType === "rename") {
+          watcher.close();
+          setTimeout(() => fs.existsSync(root) && watchFile(), 10);
         }
+      });
+    };
+    watchFile();
+    console.error(`Watching ${sourceCodeFilePath} for changes`);
+    return;
+  }
+
+  // Directories are watched one by one rather than recursively, since a recursive watch on Linux also sets up a
+  // watch for every directory skipped by the walk, like node_modules
+  const watchers = new Map();
+  const watchDirectory = (directory) => {
+    if (watchers.has(directory)) {
+      return;
+    }
+    const watcher = fs.watch(directory, (eventType, filename) => {
+      if (filename) {
+        onChange(path.join(directory, filename.toString()));
+      }
+    });
+    watcher.on("error", () => {
+      watcher.close();
+      watchers.delete(directory);
+    });
+    watchers.set(directory, watcher);
+  };
+  const scanDirectory = (directory) => {
+    watchDirectory(directory);
+    for (const entry of fs.readdirSync(directory, { withFileTypes: true })) {
+      onChange(path.join(directory, entry.name), entry);
+    }
+  };
+  function onChange(file, entry) {
+    if (sourceFiles.has(file)) {
+      schedule(file);
+      return;
+    }
+    let stats = entry;
+    try {
+      stats = stats || fs.statSync(file);
+    } catch {
+      return;
+    }
+    if (stats.isDirectory() && !watchers.has(file) && isWatchedPath(file, false)) {
+      debug(`Watching new directory ${file}`);
+      scanDirectory(file);
+    } else if (stats.isFile() && isWatchedPath(file, true)) {
+      schedule(file);
+    }
+  }
+
+  directories.add(root);
+  for (const directory of directories) {
+    watchDirectory(directory);
+  }
+  console.error(`Watching ${sourceCodeFilePath} for changes`);
+}
+
+const parseCacheStats = { hits: 0, misses: 0 };
+const ruleStats = {};
+const traversalStats = { nodes: 0, skipped: 0, depthLimited: 0, suppressed: 0, suppressedChars: 0 };
+
+/**
+ * Counts an `extractPairs` result in the parse cache, per rule and traversal statistics.
+ * @param {object} result
+ */
+function recordExtraction({ cached, ruleStats: fileRuleStats = {}, traversalStats: fileTraversalStats = {} }) {
+  if (cached) {
+    parseCacheStats.hits++;
+  } else {
+    parseCacheStats.misses++;
+  }
+  for (const [name, { hits, ns }] of Object.entries(fileRuleStats)) {
+    const stats = ruleStats[name] || (ruleStats[name] = { hits: 0, ns: 0 });
+    stats.hits += hits;
+    stats.ns += ns;
+  }
+  for (const [name, count] of Object.entries(fileTraversalStats)) {
+    traversalStats[name] += count;
+  }
+}
+
+function debugParseStats() {
+  debug(`Parse cache: ${parseCacheStats.hits} hits, ${parseCacheStats.misses} misses`);
+  debug(
+    `Traversal: ${traversalStats.nodes} nodes visited, ${traversalStats.skipped} subtrees skipped, ` +
+      `${traversalStats.depthLimited} cut off by the max depth`
+  );
+  if (traversalStats.suppressed > 0) {
+    debug(
+      `Suppressed ${traversalStats.suppressed} nested or over budget pairs, ` +
+        `${traversalStats.suppressedChars} characters of completions`
+    );
+  }
+  for (const [name, { hits, ns }] of Object.entries(ruleStats)) {
+    debug(`Rule ${name}: ${hits} prompts in ${(ns / 1e6).toFixed(1)}ms`);
+  }
+}
+
+/**
+ * Writes a minified file with many small functions and a generated file with a long chain of concatenations, whose
+ * syntax tree is as deep as the chain is long, to a temporary directory for `bench-traversal`.
+ * @param {object} options The number of `statements` in the minified file and `depth` of the nested file
+ * @returns The paths of the files
+ */
+function writeTraversalBenchmarkFiles({ statements, depth }) {
+  const directory = fs.mkdtempSync(path.join(os.tmpdir(), "bench-traversal-"));
+  const minified = Array.from(
+    { length: statements },
+    (_, i) => `function f${i}(a,b){return a?[a,"s${i}",${i}]:{k:b,v:(x)=>x+${i}}}`
+  ).join(";");
+  const nested = "module.exports=" + Array.from({ length: depth }, (_, i) => `"s${i}"`).join("+") + ";";
+  const files = [path.join(directory, "minified.js"), path.join(directory, "nested.js")];
+  fs.writeFileSync(files[0], minified);
+  fs.writeFileSync(files[1], nested);
+  return files;
+}
+
+/**
+ * Returns the traversals compared by `bench-traversal`, each returning the number of nodes it visited.
+ */
+function traversalBenchmarks() {
+  const typescript = loadTypescript();
+  const visit = () => {};
+  return {
+    recursive: (sourceFile) => {
+      let nodes = 0;
+      const walk = (node) => {
+        nodes++;
+        typescript.forEachChild(node, walk);
+      };
+      walk(sourceFile);
+      return nodes;
+    },
+    stack: (sourceFile) => walkSyntaxTree(sourceFile, visit).nodes,
+    "stack, skipping": (sourceFile) =>
+      walkSyntaxTree(sourceFile, visit, { skippedKinds: skippedKindsFor(DEFAULT_SKIP) }).nodes,
+  };
+}
+
+/**
+ * Returns the CPU limit of the cgroup the process runs in, e.g. inside a container, or 0 when there is none.
+ */
+function cgroupCpuLimit() {
+  try {
+    const [quota, period] = fs.readFileSync("/sys/fs/cgroup/cpu.max", "utf8").trim().split(/\s+/);
+    if (quota !== "max") {
+      return Math.ceil(Number(quota) / Number(period));
+    }
+  } catch {}
+  try {
+    const quota = Number(fs.readFileSync("/sys/fs/cgroup/cpu/cpu.cfs_quota_us", "utf8"));
+    const period = Number(fs.readFileSync("/sys/fs/cgroup/cpu/cpu.cfs_period_us", "utf8"));
+    if (quota > 0 && period > 0) {
+      return Math.ceil(quota / period);
+    }
+  } catch {}
+  return 0;
+}
+
+/**
+ * Returns how many CPUs this process can actually use, taking cgroup limits into account.
+ */
+function availableCpuCount() {
+  const cpus = typeof os.availableParallelism === "function" ? os.availableParallelism() : os.cpus().length;
+  const limit = cgroupCpuLimit();
+  return Math.max(1, limit > 0 ? Math.min(cpus, limit) : cpus);
+}
+
+/**
+ * Sends one file to a parse worker and resolves with the `extractPairs` result for it.
+ * @param {Worker} worker
+ * @param {string} file
+ */
+function parseInWorker(worker, file) {
+  return new Promise((resolve, reject) => {
+    const onMessage = (message) => {
+      worker.off("error", onError);
+      if (message.error) {
+        reject(new Error(`Failed to parse ${file}: ${message.error}`));
       } else {
-        debug("Parsing source code file: " + argv.sourceCodeFilePath);
-        parseSourcecode(argv.sourceCodeFilePath);
+        resolve(message);
+      }
+    };
+    const onError = (error) => {
+      worker.off("message", onMessage);
+      reject(error);
+    };
+    worker.once("message", onMessage);
+    worker.once("error", onError);
+    worker.postMessage({ file });
+  });
+}
+
+/**
+ * Runs inside a worker thread, parsing the files sent by `parseInWorker` and posting back their pairs.
+ */
+function runParseWorker() {
+  parentPort.on("message", ({ file }) => {
+    try {
+      parentPort.postMessage(extractPairs(file, workerData));
+    } catch (error) {
+      parentPort.postMessage({ error: error.message });
+    }
+  });
+}
+
+/**
+ * Returns a function that takes results tagged with their sequence number in any order and passes them on to
+ * `emit` in sequence order.
+ * @param {(value: any, index: number) => void} emit
+ */
+function inSequence(emit) {
+  const pending = new Map();
+  let next = 0;
+  return (index, value) => {
+    pending.set(index, value);
+    while (pending.has(next)) {
+      const nextValue = pending.get(next);
+      pending.delete(next);
+      emit(nextValue, next++);
+    }
+  };
+}
+
+/**
+ * Parses files on a pool of worker threads. Pairs are emitted in the order the files were given, so the
+ * output is identical to parsing the files one at a time. Threads are only started once there is a file for them,
+ * and files are handed out at most two per worker ahead of the last file emitted, so the pairs held back behind a
+ * slow file stay bounded.
+ * @param {Iterable<string>|AsyncIterable<string>} files
+ * @param {object} options `workers` is the size of the pool, `emit` receives each prompt and completion, `drain`
+ * is awaited after each file, and the rest is passed through to `extractPairs`
+ */
+async function parseFilesInWorkers(files, { workers, emit = printPair, drain = async () => {}, ...parseOptions }) {
+  const iterator = files[Symbol.asyncIterator] ? files[Symbol.asyncIterator]() : files[Symbol.iterator]();
+  let emitted = 0;
+  let waiting = [];
+  const finished = inSequence((pairs, index) => {
+    for (const [prompt, completion] of pairs) {
+      emit(prompt, completion);
+    }
+    emitted = index + 1;
+    waiting.forEach((resolve) => resolve());
+    waiting = [];
+  });
+  let nextIndex = 0;
+
+  async function work() {
+    let worker;
+    try {
+      for (;;) {
+        while (nextIndex - emitted >= workers * 2) {
+          await new Promise((resolve) => waiting.push(resolve));
+        }
+        const { value: file, done } = await iterator.next();
+        if (done) {
+          return;
+        }
+        const index = nextIndex++;
+        worker = worker || new Worker(__filename, { workerData: parseOptions });
+        const result = await parseInWorker(worker, file);
+        recordExtraction(result);
+        finished(index, result.pairs);
+        await drain();
+      }
+    } finally {
+      if (worker) {
+        await worker.terminate();
+      }
+    }
+  }
+
+  await Promise.all(Array.from({ length: workers }, work));
+  return nextIndex;
+}
+
+/**
+ * Parses the files, on worker threads when more than one worker is asked for, and returns how many files were
+ * parsed and how many files per second.
+ * @param {Iterable<string>|AsyncIterable<string>} files
+ * @param {object} options `workers` is the number of worker threads, `emit` receives each prompt and completion,
+ * `drain` is awaited after each file, and the rest is passed through to `extractPairs`
+ */
+async function parseFilesTimed(files, { workers = 1, ...options }) {
+  const start = process.hrtime.bigint();
+  let count = 0;
+  if (workers > 1) {
+    count = await parseFilesInWorkers(files, { workers, ...options });
+  } else {
+    const { emit = printPair, drain = async () => {}, ...parseOptions } = options;
+    for await (const file of files) {
+      const result = extractPairs(file, parseOptions);
+      recordExtraction(result);
+      for (const [prompt, completion] of result.pairs) {
+        emit(prompt, completion);
       }
+      await drain();
+      count++;
     }
-  )
-  .parse();
+  }
+  const seconds = Number(process.hrtime.bigint() - start) / 1e9;
+  return { count, filesPerSecond: count / seconds };
+}
+
+/**
+ * Creates a two tier completion cache: an in-process LRU in front of a content-addressed store on disk. Entries
+ * older than the TTL are treated as misses, and the oldest files on disk are evicted once it grows past its size.
+ * The size on disk is kept in a file next to the entries, so a new process does not list the store to learn it, and
+ * eviction runs in the background rather than delaying the completion being cached.
+ * @param {object} options `directory` of the disk store, `ttlMs`, `maxEntries` kept in memory and `maxBytes` kept on disk
+ */
+function createCompletionCache({ directory, ttlMs, maxEntries, maxBytes }) {
+  const memory = new Map();
+  const stats = { memoryHits: 0, diskHits: 0, misses: 0, evictions: 0 };
+  const sizeFilePath = path.join(directory, "size");
+  let diskBytes;
+  let eviction;
+  let sizeWrite = Promise.resolve();
+
+  const filePathFor = (key) => path.join(directory, key.slice(0, 2), `${key}.json`);
+
+  function remember(key, entry) {
+    memory.delete(key);
+    memory.set(key, entry);
+    if (memory.size > maxEntries) {
+      memory.delete(memory.keys().next().value);
+    }
+  }
+
+  async function listFiles() {
+    const files = [];
+    for (const shard of await fs.promises.readdir(directory).catch(() => [])) {
+      for (const name of await fs.promises.readdir(path.join(directory, shard)).catch(() => [])) {
+        const filePath = path.join(directory, shard, name);
+        const stat = await fs.promises.stat(filePath).catch(() => null);
+        if (stat) {
+          files.push({ filePath, size: stat.size, mtimeMs: stat.mtimeMs });
+        }
+      }
+    }
+    return files;
+  }
+
+  async function evict() {
+    const files = await listFiles();
+    diskBytes = files.reduce((total, file) => total + file.size, 0);
+    if (diskBytes <= maxBytes) {
+      return;
+    }
+    files.sort((a, b) => a.mtimeMs - b.mtimeMs);
+    for (const file of files) {
+      if (diskBytes <= maxBytes * 0.8) {
+        break;
+      }
+      await fs.promises.rm(file.filePath, { force: true });
+      diskBytes -= file.size;
+      stats.evictions++;
+    }
+  }
+
+  async function readDiskBytes() {
+    const size = Number(await fs.promises.readFile(sizeFilePath, "utf8").catch(() => NaN));
+    return Number.isFinite(size) ? size : undefined;
+  }
+
+  function writeDiskBytes() {
+    const temporaryPath = `${sizeFilePath}.${process.pid}.tmp`;
+    // Chained so an earlier size never overwrites a later one
+    sizeWrite = sizeWrite
+      .then(() => fs.promises.writeFile(temporaryPath, String(diskBytes)))
+      .then(() => fs.promises.rename(temporaryPath, sizeFilePath))
+      .catch((error) => debug(`Could not write the completion cache size: ${error.message}`));
+  }
+
+  function evictInBackground() {
+    eviction =
+      eviction ||
+      evict()
+        .then(writeDiskBytes)
+        .catch((error) => debug(`Could not evict completion cache entries: ${error.message}`))
+        .finally(() => {
+          eviction = undefined;
+        });
+  }
+
+  return {
+    stats,
+    async get(key) {
+      const now = Date.now();
+      const cached = memory.get(key);
+      if (cached && now - cached.createdAt < ttlMs) {
+        remember(key, cached);
+        stats.memoryHits++;
+        return cached.data;
+      }
+      const filePath = filePathFor(key);
+      try {
+        const entry = JSON.parse(await fs.promises.readFile(filePath, "utf8"));
+        if (now - entry.createdAt < ttlMs) {
+          remember(key, entry);
+          // Touch the file so eviction on disk is least recently used
+          fs.promises.utimes(filePath, new Date(), new Date()).catch(() => {});
+          stats.diskHits++;
+          return entry.data;
+        }
+        await fs.promises.rm(filePath, { force: true });
+      } catch (error) {
+        if (error.code !== "ENOENT") {
+          debug(`Ignoring unreadable completion cache entry ${filePath}: ${error.message}`);
+        }
+      }
+      stats.misses++;
+      return undefined;
+    },
+    async set(key, data) {
+      const entry = { createdAt: Date.now(), data };
+      remember(key, entry);
+      const filePath = filePathFor(key);
+      const contents = JSON.stringify(entry);
+      await fs.promises.mkdir(path.dirname(filePath), { recursive: true });
+      await fs.promises.writeFile(`${filePath}.${process.pid}.tmp`, contents);
+      await fs.promises.rename(`${filePath}.${process.pid}.tmp`, filePath);
+      if (diskBytes === undefined) {
+        diskBytes = await readDiskBytes();
+      }
+      if (diskBytes === undefined || (diskBytes += Buffer.byteLength(contents)) > maxBytes) {
+        evictInBackground();
+      } else {
+        writeDiskBytes();
+      }
+    },
+  };
+}
+
+const completionCache = createCompletionCache({
+  directory: COMPLETION_CACHE_PATH,
+  ttlMs: COMPLETION_CACHE_TTL_HOURS * 60 * 60 * 1000,
+  maxEntries: COMPLETION_CACHE_MEMORY_ENTRIES,
+  maxBytes: COMPLETION_CACHE_DISK_BYTES,
+});
+
+/**
+ * Returns the cache key of a completion request. Every sampling parameter is part of the key, in a stable order.
+ * @param {string} model
+ * @param {string} prompt
+ * @param {object} params
+ */
+function completionCacheKey(model, prompt, params) {
+  return crypto.createHash("sha256").update(JSON.stringify([model, prompt, sortedParams(params)])).digest("hex");
+}
+
+/**
+ * Returns the parameters a completion is keyed on, which include the hedge model when hedging since its answer may
+ * come from that model.
+ * @param {object} params The sampling parameters
+ * @param {object} hedge The `model` and `delayMs` to hedge with, if any
+ */
+function hedgedParams(params, hedge) {
+  return hedge ? { ...params, hedgeModel: hedge.model } : params;
+}
+
+function sortedParams(params) {
+  return Object.keys(params).sort().map((key) => [key, params[key]]);
+}
+
+/**
+ * Returns the sampling parameters set on the command line, leaving out the ones that were not given.
+ * @param {object} argv
+ */
+function samplingParams(argv) {
+  const params = {
+    max_tokens: argv.maxTokens,
+    temperature: argv.temperature,
+    top_p: argv.topP,
+    stop: argv.stop,
+  };
+  return Object.fromEntries(Object.entries(params).filter(([, value]) => value !== undefined));
+}
+
+const WALK_OPTIONS = {
+  include: { type: "array", default: [], description: "Only parse files matching these globs" },
+  exclude: { type: "array", default: [], description: "Skip files and directories matching these globs" },
+  gitignore: { type: "boolean", default: true, description: "Skip files ignored by .gitignore files" },
+};
+
+function walkOptions(argv) {
+  return { include: argv.include.map(String), exclude: argv.exclude.map(String), gitignore: argv.gitignore };
+}
+
+const TRAVERSAL_OPTIONS = {
+  skip: {
+    type: "array",
+    choices: Object.keys(SKIP_CATEGORIES),
+    default: DEFAULT_SKIP,
+    description: "Subtree categories that are never visited, --skip with no categories visits every node",
+  },
+  "max-depth": {
+    type: "number",
+    default: DEFAULT_MAX_DEPTH,
+    description: "Deepest syntax tree level visited, deeper subtrees are skipped",
+  },
+};
+
+function traversalOptions(argv) {
+  return { skip: argv.skip.map(String), maxDepth: argv.maxDepth };
+}
+
+const DEDUP_OPTION = {
+  type: "boolean",
+  default: false,
+  description: "Drop repeated prompt and completion pairs, comparing completions token by token",
+};
+
+const DEDUP_NEAR_OPTION = {
+  type: "number",
+  description: "Collapse pairs whose completions are near duplicates above this Jaccard similarity, e.g. 0.7",
+};
+
+const TOKEN_BUDGET_OPTIONS = {
+  "token-budget": { type: "number", description: "Most GPT-2 tokens of a prompt and completion together" },
+  "over-budget": {
+    choices: ["drop", "truncate"],
+    default: "drop",
+    description: "Drop rows over the token budget or truncate their completion to fit",
+  },
+};
+
+const HEDGE_OPTIONS = {
+  "hedge-model": { type: "string", description: "Second model to send the prompt to when the first is slow" },
+  "hedge-delay": {
+    type: "number",
+    default: 500,
+    description: "Milliseconds to wait for the first model before also sending the prompt to the hedge model",
+  },
+};
+
+/**
+ * Returns the hedge model and delay set on the command line, or undefined when not hedging.
+ * @param {object} argv
+ */
+function hedgeOptions(argv) {
+  return argv.hedgeModel ? { model: argv.hedgeModel, delayMs: argv.hedgeDelay } : undefined;
+}
+
+const SAMPLING_OPTIONS = {
+  "max-tokens": { type: "number", description: "Maximum number of tokens to generate" },
+  temperature: { type: "number", description: "Sampling temperature" },
+  "top-p": { type: "number", description: "Nucleus sampling probability mass" },
+  stop: { type: "string", description: "Sequence where the completion stops" },
+};
+
+const hedgeStats = { requests: 0, fired: 0, secondaryWins: 0, hedgedMs: [], unhedgedMs: [] };
+
+/**
+ * Sends a completion request to its model and, when no response has arrived within `hedge.delayMs` or the first
+ * request failed, sends it to `hedge.model` too. The first response wins and the other request is aborted.
+ * @param {object} request The createCompletion request
+ * @param {object} hedge `model` to hedge with and `delayMs` to wait for the first model before hedging
+ * @returns The completion response data
+ */
+function createHedgedCompletion(request, hedge) {
+  const start = process.hrtime.bigint();
+  hedgeStats.requests++;
+  return new Promise((resolve, reject) => {
+    const controllers = [];
+    let pending = 0;
+    let settled = false;
+    let firstError;
+
+    function send(model) {
+      const controller = new AbortController();
+      controllers.push(controller);
+      pending++;
+      openai.createCompletion({ ...request, model }, { signal: controller.signal }).then(
+        (response) => {
+          if (settled) {
+            return;
+          }
+          settled = true;
+          clearTimeout(timer);
+          controllers.filter((other) => other !== controller).forEach((other) => other.abort());
+          const elapsedMs = Number(process.hrtime.bigint() - start) / 1e6;
+          (controllers.length > 1 ? hedgeStats.hedgedMs : hedgeStats.unhedgedMs).push(elapsedMs);
+          hedgeStats.secondaryWins += model === hedge.model ? 1 : 0;
+          resolve(response.data);
+        },
+        (error) => {
+          pending--;
+          if (settled) {
+            return;
+          }
+          firstError = firstError || error;
+          if (controllers.length === 1) {
+            clearTimeout(timer);
+            fire();
+          } else if (pending === 0) {
+            settled = true;
+            reject(firstError);
+          }
+        }
+      );
+    }
+
+    function fire() {
+      hedgeStats.fired++;
+      send(hedge.model);
+    }
+
+    const timer = setTimeout(fire, hedge.delayMs);
+    send(request.model);
+  });
+}
+
+/**
+ * Returns the 50th, 90th and 99th percentiles of the latencies as text.
+ * @param {number[]} latencies In milliseconds
+ */
+function formatPercentiles(latencies) {
+  if (latencies.length === 0) {
+    return "no requests";
+  }
+  const sorted = [...latencies].sort((a, b) => a - b);
+  const at = (percentile) => sorted[Math.min(sorted.length - 1, Math.floor(percentile * sorted.length))].toFixed(0);
+  return `p50 ${at(0.5)}ms, p90 ${at(0.9)}ms, p99 ${at(0.99)}ms over ${sorted.length} requests`;
+}
+
+/**
+ * Sends a completion request, hedged with a second model when `hedge` is given.
+ * @param {object} request The createCompletion request
+ * @param {object} hedge Optional `model` and `delayMs` for `createHedgedCompletion`
+ * @returns The completion response data
+ */
+async function sendCompletion(request, hedge) {
+  if (hedge) {
+    return createHedgedCompletion(request, hedge);
+  }
+  return (await openai.createCompletion(request)).data;
+}
+
+const inFlightCompletions = new Map();
+const singleFlightStats = { started: 0, coalesced: 0 };
+
+/**
+ * Returns the promise of an identical completion request already in flight, counting the caller as one more
+ * waiter on it, or undefined when there is none.
+ * @param {string} key The `completionCacheKey` of the request
+ */
+function joinInFlight(key) {
+  const flight = inFlightCompletions.get(key);
+  if (!flight) {
+    return undefined;
+  }
+  flight.waiters++;
+  singleFlightStats.coalesced++;
+  return flight.promise;
+}
+
+/**
+ * Registers a completion request as in flight so identical requests made before it settles can share its result.
+ * @param {string} key The `completionCacheKey` of the request
+ */
+function startInFlight(key) {
+  const flight = { waiters: 1 };
+  flight.promise = new Promise((resolve, reject) => Object.assign(flight, { resolve, reject }));
+  // Rejections are handled by the caller that started the request
+  flight.promise.catch(() => {});
+  inFlightCompletions.set(key, flight);
+  singleFlightStats.started++;
+  return flight;
+}
+
+function settleInFlight(key, flight, error, completion) {
+  inFlightCompletions.delete(key);
+  if (flight.waiters > 1) {
+    debug(`Coalesced ${flight.waiters} identical requests for ${key.slice(0, 12)}`);
+  }
+  if (error) {
+    flight.reject(error);
+  } else {
+    flight.resolve(completion);
+  }
+}
+
+/**
+ * Returns the completion generated from OpenAI GPT-3 using any model given the prompt. Identical requests that are
+ * already in flight are not sent again, the caller waits for their result instead.
+ * @param {string} model The fine tune id or the id of another model
+ * @param {string} prompt The prompt to generate the code completion for
+ * @param {object} options `params` are the sampling parameters, `cache` is false to bypass the completion cache
+ * `batcher` is a `createCompletionBatcher` to send the prompt through, and `stopAtBoundary` streams the completion
+ * and stops it at the end of the construct it opened, and `hedge` is the `model` and `delayMs` to hedge with, which
+ * cannot be combined with `stopAtBoundary`
+ * @returns The completion response data
+ */
+async function generateCode(model, prompt, { params = {}, cache = true, batcher, stopAtBoundary = false, hedge } = {}) {
+  if (stopAtBoundary && hedge) {
+    throw Object.assign(new Error("Stopping at a boundary cannot be combined with hedging"), { statusCode: 400 });
+  }
+  const keyParams = stopAtBoundary ? { ...params, stopAtBoundary } : params;
+  const key = completionCacheKey(model, prompt, hedgedParams(keyParams, hedge));
+  const cached = cache ? await completionCache.get(key) : undefined;
+  if (cached) {
+    return cached;
+  }
+  const inFlight = joinInFlight(key);
+  if (inFlight) {
+    return inFlight;
+  }
+  const flight = startInFlight(key);
+  let completion;
+  try {
+    if (stopAtBoundary) {
+      const { text, stoppedAtBoundary } = await streamCompletionText(model, prompt, { params, stopAtBoundary });
+      completion = { model, choices: [{ text, index: 0, finish_reason: stoppedAtBoundary ? "boundary" : "stop" }] };
+    } else if (batcher) {
+      completion = await batcher.generate(model, prompt, params);
+    } else {
+      completion = await sendCompletion({ model, prompt, ...params }, hedge);
+    }
+  } catch (error) {
+    settleInFlight(key, flight, error);
+    throw error;
+  }
+  settleInFlight(key, flight, undefined, completion);
+  if (cache) {
+    await completionCache.set(key, completion);
+  }
+  return completion;
+}
+
+/**
+ * Parses a stream of server-sent events incrementally, yielding the data of each event as soon as it is complete.
+ * @param {AsyncIterable<Buffer|string>} stream
+ */
+async function* readServerSentEvents(stream) {
+  const decoder = new StringDecoder("utf8");
+  let buffer = "";
+  for await (const chunk of stream) {
+    buffer += typeof chunk === "string" ? chunk : decoder.write(chunk);
+    let end;
+    while ((end = buffer.search(/\r?\n\r?\n/)) !== -1) {
+      const event = buffer.slice(0, end);
+      buffer = buffer.slice(end).replace(/^\r?\n\r?\n/, "");
+      const data = event
+        .split(/\r?\n/)
+        .filter((line) => line.startsWith("data:"))
+        .map((line) => line.slice(5).replace(/^ /, ""));
+      if (data.length > 0) {
+        yield data.join("\n");
+      }
+    }
+  }
+}
+
+/**
+ * Streams the completion for a prompt, yielding the text of each chunk as it arrives.
+ * @param {string} model The fine tune id or the id of another model
+ * @param {string} prompt The prompt to generate the code completion for
+ * @param {object} options `params` are the sampling parameters and `signal` aborts the request
+ */
+async function* streamCode(model, prompt, { params = {}, signal } = {}) {
+  const response = await openai.createCompletion(
+    { model, prompt, ...params, stream: true },
+    { responseType: "stream", signal }
+  );
+  // axios stops listening to the signal once the response has started, so the stream is destroyed on abort
+  const abort = () => response.data.destroy();
+  if (signal) {
+    signal.addEventListener("abort", abort, { once: true });
+  }
+  try {
+    for await (const data of readServerSentEvents(response.data)) {
+      if (data === "[DONE]") {
+        return;
+      }
+      const [choice] = JSON.parse(data).choices;
+      if (choice && choice.text) {
+        yield choice.text;
+      }
+    }
+  } finally {
+    if (signal) {
+      signal.removeEventListener("abort", abort);
+    }
+  }
+}
+
+/**
+ * Creates a detector that scans completion text with the TypeScript scanner as it is streamed and finds where the
+ * top-level construct it opened ends: a statement ending in `;` or a line break followed by a new statement, or a
+ * block whose closing brace is not followed by `else`, `catch` or the like. Closing a bracket the completion never
+ * opened, or starting an `import` or `export` on a new line, ends the completion just before it. Only complete
+ * tokens are scanned, so scanning resumes after the last complete token when more text arrives.
+ */
+function createBoundaryDetector() {
+  const typescript = loadTypescript();
+  const { SyntaxKind } = typescript;
+  const openers = new Set([SyntaxKind.OpenBraceToken, SyntaxKind.OpenParenToken, SyntaxKind.OpenBracketToken]);
+  const closers = new Set([SyntaxKind.CloseBraceToken, SyntaxKind.CloseParenToken, SyntaxKind.CloseBracketToken]);
+  const continuations = new Set([
+    SyntaxKind.ElseKeyword,
+    SyntaxKind.CatchKeyword,
+    SyntaxKind.FinallyKeyword,
+    SyntaxKind.WhileKeyword,
+    SyntaxKind.DotToken,
+    SyntaxKind.QuestionDotToken,
+    SyntaxKind.CommaToken,
+    SyntaxKind.OpenParenToken,
+  ]);
+  const statementStarts = new Set([
+    SyntaxKind.ConstKeyword,
+    SyntaxKind.LetKeyword,
+    SyntaxKind.VarKeyword,
+    SyntaxKind.FunctionKeyword,
+    SyntaxKind.ClassKeyword,
+    SyntaxKind.IfKeyword,
+    SyntaxKind.ForKeyword,
+    SyntaxKind.SwitchKeyword,
+    SyntaxKind.TryKeyword,
+    SyntaxKind.ThrowKeyword,
+    SyntaxKind.ReturnKeyword,
+  ]);
+  const statementEnds = new Set([
+    SyntaxKind.Identifier,
+    SyntaxKind.NumericLiteral,
+    SyntaxKind.BigIntLiteral,
+    SyntaxKind.StringLiteral,
+    SyntaxKind.NoSubstitutionTemplateLiteral,
+    SyntaxKind.TemplateTail,
+    SyntaxKind.CloseParenToken,
+    SyntaxKind.CloseBracketToken,
+    SyntaxKind.PlusPlusToken,
+    SyntaxKind.MinusMinusToken,
+    SyntaxKind.ThisKeyword,
+    SyntaxKind.TrueKeyword,
+    SyntaxKind.FalseKeyword,
+    SyntaxKind.NullKeyword,
+  ]);
+  const scanner = typescript.createScanner(typescript.ScriptTarget.Latest, true);
+  const open = [];
+  let text = "";
+  let committed = 0;
+  let lastToken;
+  let closedBlockAt = -1;
+
+  function scanToBoundary() {
+    scanner.setText(text, committed);
+    for (;;) {
+      let token = scanner.scan();
+      const start = scanner.getTokenPos();
+      // The last token may go on in the next chunk
+      if (token === SyntaxKind.EndOfFileToken || scanner.getTextPos() >= text.length) {
+        return -1;
+      }
+      if (closedBlockAt !== -1) {
+        if (token === SyntaxKind.SemicolonToken) {
+          return scanner.getTextPos();
+        }
+        if (!continuations.has(token)) {
+          return closedBlockAt;
+        }
+        closedBlockAt = -1;
+      }
+      if (lastToken !== undefined && scanner.hasPrecedingLineBreak()) {
+        if (token === SyntaxKind.ImportKeyword || token === SyntaxKind.ExportKeyword) {
+          return start;
+        }
+        if (open.length === 0 && statementStarts.has(token) && statementEnds.has(lastToken)) {
+          return start;
+        }
+      }
+      if (token === SyntaxKind.CloseBraceToken && open[open.length - 1] === SyntaxKind.TemplateHead) {
+        token = scanner.reScanTemplateToken(false);
+        if (token === SyntaxKind.TemplateTail) {
+          open.pop();
+        }
+      } else if (openers.has(token) || token === SyntaxKind.TemplateHead) {
+        open.push(token);
+      } else if (closers.has(token)) {
+        if (open.length === 0) {
+          return start;
+        }
+        open.pop();
+        if (open.length === 0 && token === SyntaxKind.CloseBraceToken) {
+          closedBlockAt = scanner.getTextPos();
+        }
+      } else if (token === SyntaxKind.SemicolonToken && open.length === 0 && lastToken !== undefined) {
+        return scanner.getTextPos();
+      }
+      lastToken = token;
+      committed = scanner.getTextPos();
+    }
+  }
+
+  return {
+    /**
+     * Length of the text known to be before the boundary.
+     */
+    get committed() {
+      return committed;
+    },
+    /**
+     * Adds streamed text and returns the length of the completion up to its boundary, or -1 when it is not known yet.
+     * @param {string} chunk
+     */
+    push(chunk) {
+      text += chunk;
+      return scanToBoundary();
+    },
+  };
+}
+
+const boundaryStats = { completions: 0, stopped: 0, chunks: 0, trimmedChars: 0, totalMs: 0 };
+
+/**
+ * Streams the completion for a prompt, passing its text to `onText` as it arrives. With `stopAtBoundary` the text
+ * is only passed on once it is known to come before the `createBoundaryDetector` boundary, and the request is
+ * aborted as soon as the boundary is found.
+ * @param {string} model The fine tune id or the id of another model
+ * @param {string} prompt The prompt to generate the code completion for
+ * @param {object} options `params` are the sampling parameters, `stopAtBoundary` and `onText`
+ * @returns The completion text, the time to first token and the total latency in milliseconds, and how many
+ * chunks were received and characters trimmed
+ */
+async function streamCompletionText(model, prompt, { params = {}, stopAtBoundary = false, onText = () => {} } = {}) {
+  const start = process.hrtime.bigint();
+  const elapsedMs = () => Number(process.hrtime.bigint() - start) / 1e6;
+  const controller = new AbortController();
+  const detector = stopAtBoundary ? createBoundaryDetector() : undefined;
+  let text = "";
+  let written = 0;
+  let chunks = 0;
+  let boundary = -1;
+  let firstTokenMs;
+  for await (const token of streamCode(model, prompt, { params, signal: controller.signal })) {
+    firstTokenMs = firstTokenMs === undefined ? elapsedMs() : firstTokenMs;
+    chunks++;
+    text += token;
+    if (!detector) {
+      onText(token);
+      continue;
+    }
+    boundary = detector.push(token);
+    if (boundary !== -1) {
+      controller.abort();
+      break;
+    }
+    onText(text.slice(written, detector.committed));
+    written = detector.committed;
+  }
+  const received = text.length;
+  if (boundary !== -1) {
+    text = text.slice(0, boundary).trimEnd();
+  }
+  onText(text.slice(written));
+  const totalMs = elapsedMs();
+  if (stopAtBoundary) {
+    boundaryStats.completions++;
+    boundaryStats.stopped += boundary !== -1 ? 1 : 0;
+    boundaryStats.chunks += chunks;
+    boundaryStats.trimmedChars += received - text.length;
+    boundaryStats.totalMs += totalMs;
+  }
+  return {
+    text,
+    firstTokenMs: firstTokenMs === undefined ? totalMs : firstTokenMs,
+    totalMs,
+    chunks,
+    stoppedAtBoundary: boundary !== -1,
+  };
+}
+
+/**
+ * Writes the completion for a prompt to `output` as it is streamed, and caches the full completion once done.
+ * @param {string} model The fine tune id or the id of another model
+ * @param {string} prompt The prompt to generate the code completion for
+ * @param {NodeJS.WritableStream} output
+ * @param {object} options `params` are the sampling parameters, `cache` is false to bypass the completion cache and
+ * `stopAtBoundary` stops the completion at the end of the construct it opened
+ * @returns The time to first token and the total latency in milliseconds
+ */
+async function generateCodeStreaming(model, prompt, output, { params = {}, cache = true, stopAtBoundary = false } = {}) {
+  const start = process.hrtime.bigint();
+  const key = completionCacheKey(model, prompt, stopAtBoundary ? { ...params, stopAtBoundary } : params);
+  const cached = cache ? await completionCache.get(key) : undefined;
+  if (cached) {
+    output.write(cached.choices[0].text);
+    const elapsedMs = Number(process.hrtime.bigint() - start) / 1e6;
+    return { firstTokenMs: elapsedMs, totalMs: elapsedMs };
+  }
+  const { text, firstTokenMs, totalMs } = await streamCompletionText(model, prompt, {
+    params,
+    stopAtBoundary,
+    onText: (token) => output.write(token),
+  });
+  if (cache) {
+    await completionCache.set(key, { model, choices: [{ text, index: 0 }] });
+  }
+  return { firstTokenMs, totalMs };
+}
+
+/**
+ * Returns the completions for several prompts, sending every prompt missing from the cache in a single request.
+ * Prompts with an identical request already in flight, or repeated in `prompts`, are only sent once.
+ * @param {string} model The fine tune id or the id of another model
+ * @param {string[]} prompts
+ * @param {object} options `params` are the sampling parameters, `cache` is false to bypass the completion cache
+ * `coalesce` is false to send every prompt even when an identical request is in flight, and `hedge` is the `model`
+ * and `delayMs` to hedge with
+ * @returns The completion response data for each prompt, in the same order as the prompts
+ */
+async function generateCodeBatch(model, prompts, { params = {}, cache = true, coalesce = true, hedge } = {}) {
+  const keys = prompts.map((prompt) => completionCacheKey(model, prompt, hedgedParams(params, hedge)));
+  const results = await Promise.all(keys.map((key) => (cache ? completionCache.get(key) : undefined)));
+  const joined = [];
+  const flights = new Map();
+  const missing = [];
+  results.forEach((result, i) => {
+    if (result) {
+      return;
+    }
+    const inFlight = coalesce ? joinInFlight(keys[i]) : undefined;
+    if (inFlight) {
+      joined.push(inFlight.then((completion) => (results[i] = completion)));
+      return;
+    }
+    missing.push(i);
+    if (coalesce) {
+      flights.set(i, startInFlight(keys[i]));
+    }
+  });
+  // Handled from the start, as a joined request can fail while this one is still waiting for its own
+  const joinedDone = Promise.all(joined);
+  joinedDone.catch(() => {});
+  if (missing.length > 0) {
+    let response;
+    try {
+      response = await sendCompletion({ model, prompt: missing.map((i) => prompts[i]), ...params }, hedge);
+    } catch (error) {
+      flights.forEach((flight, i) => settleInFlight(keys[i], flight, error));
+      throw error;
+    }
+    // Each prompt gets `n` choices, in prompt order
+    const choicesPerPrompt = params.n || 1;
+    const choices = missing.map(() => []);
+    for (const choice of response.choices) {
+      const promptChoices = choices[Math.floor(choice.index / choicesPerPrompt)];
+      promptChoices.push({ ...choice, index: promptChoices.length });
+    }
+    await Promise.all(missing.map(async (i, j) => {
+      results[i] = { ...response, choices: choices[j] };
+      if (flights.has(i)) {
+        settleInFlight(keys[i], flights.get(i), undefined, results[i]);
+      }
+      if (cache) {
+        await completionCache.set(keys[i], results[i]);
+      }
+    }));
+  }
+  await joinedDone;
+  return results;
+}
+
+/**
+ * Creates a batcher that collects completion requests for the same model and sampling parameters for up to
+ * `windowMs`, or until `maxBatch` requests are waiting, and sends them as one multi-prompt request. Each caller
+ * gets the choices for its own prompt back.
+ * @param {object} options `windowMs` to wait for more requests, `maxBatch` prompts to send at most in a request and
+ * `hedge` as for `generateCodeBatch`
+ */
+function createCompletionBatcher({ windowMs, maxBatch, hedge }) {
+  const batches = new Map();
+  const stats = { requests: 0, batches: 0 };
+
+  function send(key) {
+    const batch = batches.get(key);
+    batches.delete(key);
+    clearTimeout(batch.timer);
+    stats.batches++;
+    const prompts = batch.waiting.map(({ prompt }) => prompt);
+    // The callers have already registered their requests as in flight in `generateCode`
+    generateCodeBatch(batch.model, prompts, { params: batch.params, cache: false, coalesce: false, hedge }).then(
+      (completions) => batch.waiting.forEach(({ resolve }, i) => resolve(completions[i])),
+      (error) => batch.waiting.forEach(({ reject }) => reject(error))
+    );
+  }
+
+  return {
+    stats,
+    generate(model, prompt, params) {
+      return new Promise((resolve, reject) => {
+        const key = JSON.stringify([model, sortedParams(params)]);
+        let batch = batches.get(key);
+        if (!batch) {
+          batch = { model, params, waiting: [], timer: setTimeout(() => send(key), windowMs) };
+          batches.set(key, batch);
+        }
+        batch.waiting.push({ prompt, resolve, reject });
+        stats.requests++;
+        if (batch.waiting.length >= maxBatch) {
+          send(key);
+        }
+      });
+    },
+  };
+}
+
+/**
+ * Generates completions for every prompt in a CSV or JSONL file and writes them to a JSONL file in the same order.
+ * Prompts are packed `batchSize` to a request with up to `concurrency` requests in flight.
+ * @param {string} model The fine tune id or the id of another model
+ * @param {string} promptsFilePath
+ * @param {string} outFilePath
+ * @param {object} options `batchSize`, `concurrency`, and `params` and `cache` as for `generateCode`
+ */
+async function generateCodeFromFile(model, promptsFilePath, outFilePath, { batchSize, concurrency, ...options }) {
+  const start = process.hrtime.bigint();
+  const out = fs.createWriteStream(outFilePath);
+  const write = inSequence((line) => out.write(line));
+  const inFlight = new Set();
+  let requests = 0;
+  let count = 0;
+  let batch = [];
+
+  async function send(batch) {
+    while (inFlight.size >= concurrency) {
+      await Promise.race(inFlight);
+    }
+    requests++;
+    const request = generateCodeBatch(model, batch.map(({ prompt }) => prompt), options).then((completions) => {
+      batch.forEach(({ index, prompt }, i) => {
+        write(index, JSON.stringify({ prompt, completion: completions[i].choices[0].text }) + "\n");
+      });
+    });
+    inFlight.add(request);
+    request.finally(() => inFlight.delete(request)).catch(() => {});
+  }
+
+  for await (const { prompt } of readDatasetRecords(promptsFilePath)) {
+    batch.push({ index: count++, prompt });
+    if (batch.length === batchSize) {
+      await send(batch);
+      batch = [];
+    }
+  }
+  if (batch.length > 0) {
+    await send(batch);
+  }
+  await Promise.all(inFlight);
+  await new Promise((resolve, reject) => out.end((error) => (error ? reject(error) : resolve())));
+  const seconds = Number(process.hrtime.bigint() - start) / 1e9;
+  debug(`Generated ${count} completions in ${requests} batches at ${(count / seconds).toFixed(1)} prompts/second`);
+}
+
+/**
+ * Reads a JSON request body, refusing bodies larger than `maxBytes`.
+ * @param {http.IncomingMessage} request
+ * @param {number} maxBytes
+ */
+async function readJsonBody(request, maxBytes = 1024 * 1024) {
+  const chunks = [];
+  let bytes = 0;
+  for await (const chunk of request) {
+    bytes += chunk.length;
+    if (bytes > maxBytes) {
+      throw Object.assign(new Error("Request body too large"), { statusCode: 413 });
+    }
+    chunks.push(chunk);
+  }
+  try {
+    return JSON.parse(Buffer.concat(chunks).toString("utf8"));
+  } catch (error) {
+    throw Object.assign(new Error(`Invalid JSON body: ${error.message}`), { statusCode: 400 });
+  }
+}
+
+function sendJson(response, statusCode, body, headers = {}) {
+  response.writeHead(statusCode, { "Content-Type": "application/json", ...headers });
+  response.end(JSON.stringify(body));
+}
+
+/**
+ * Serves completions over HTTP with a warm OpenAI client. `POST /completions` takes a JSON body with the `model`,
+ * the `prompt` and any sampling parameters and returns the completion response. `GET /status` returns the number
+ * of requests in flight. `"stop_at_boundary": true` in the body stops the completion at the end of the construct
+ * it opened. The server stops accepting connections on SIGINT or SIGTERM and exits once the requests
+ * in flight have finished.
+ * @param {object} options `host` and `port` to listen on, `cache` as for `generateCode`, and `batchWindowMs` and
+ * `maxBatch` for the `createCompletionBatcher` that concurrent requests are batched with, or 0 to not batch them,
+ * and `hedge` as for `generateCode`
+ */
+function serveCompletions({ host, port, cache, batchWindowMs, maxBatch, hedge }) {
+  const batcher = batchWindowMs > 0 ? createCompletionBatcher({ windowMs: batchWindowMs, maxBatch, hedge }) : undefined;
+  const stats = { inFlight: 0, served: 0, failed: 0, batcher: batcher && batcher.stats };
+  let shuttingDown = false;
+
+  const server = http.createServer(async (request, response) => {
+    // Close kept alive connections once shutting down so the server can finish closing
+    const reply = (statusCode, body) => sendJson(response, statusCode, body, shuttingDown ? { Connection: "close" } : {});
+    if (request.method === "GET" && request.url === "/status") {
+      const { requests, fired, secondaryWins } = hedgeStats;
+      reply(200, {
+        ...stats,
+        singleFlight: { ...singleFlightStats, waiting: coalescedInFlight() },
+        hedging: { requests, fired, secondaryWins },
+      });
+      return;
+    }
+    if (request.method !== "POST" || request.url !== "/completions") {
+      reply(404, { error: "Not found" });
+      return;
+    }
+    stats.inFlight++;
+    try {
+      const { model, prompt, stop_at_boundary: stopAtBoundary = false, ...params } = await readJsonBody(request);
+      if (typeof model !== "string" || typeof prompt !== "string") {
+        throw Object.assign(new Error("`model` and `prompt` must be strings"), { statusCode: 400 });
+      }
+      reply(200, await generateCode(model, prompt, { params, cache, batcher, stopAtBoundary, hedge }));
+      stats.served++;
+    } catch (error) {
+      stats.failed++;
+      debug(`Completion request failed: ${error.message}`);
+      reply(error.statusCode || (error.response && error.response.status) || 500, { error: error.message });
+    } finally {
+      stats.inFlight--;
+    }
+  });
+
+  function shutdown(signal) {
+    if (shuttingDown) {
+      console.log(`Received ${signal} again, exiting with ${stats.inFlight} requests in flight`);
+      process.exit(1);
+    }
+    shuttingDown = true;
+    console.log(`Received ${signal}, waiting for ${stats.inFlight} requests in flight`);
+    server.close(() => {
+      debugCompletionStats();
+      if (batcher) {
+        debug(`Batched ${batcher.stats.requests} requests into ${batcher.stats.batches} upstream requests`);
+      }
+      process.exit(0);
+    });
+    if (typeof server.closeIdleConnections === "function") {
+      server.closeIdleConnections();
+    }
+  }
+  process.on("SIGINT", shutdown);
+  process.on("SIGTERM", shutdown);
+
+  server.listen(port, host, () => {
+    console.log(`Serving completions on http://${host}:${port}/completions`);
+  });
+  return server;
+}
+
+function debugCompletionStats() {
+  const { memoryHits, diskHits, misses, evictions } = completionCache.stats;
+  debug(`Completion cache: ${memoryHits} memory hits, ${diskHits} disk hits, ${misses} misses, ${evictions} evictions`);
+  if (boundaryStats.completions > 0) {
+    const { completions, stopped, chunks, trimmedChars, totalMs } = boundaryStats;
+    debug(
+      `Boundary stop: ${stopped} of ${completions} completions stopped early, ${chunks} tokens received, ` +
+      `${trimmedChars} characters trimmed, ${(totalMs / completions).toFixed(1)}ms per completion`
+    );
+  }
+  if (hedgeStats.requests > 0) {
+    const { requests, fired, secondaryWins, hedgedMs, unhedgedMs } = hedgeStats;
+    debug(`Hedging: fired for ${fired} of ${requests} requests, hedge model won ${secondaryWins}`);
+    debug(`Latency without hedging: ${formatPercentiles(unhedgedMs)}`);
+    debug(`Latency with hedging: ${formatPercentiles(hedgedMs)}`);
+  }
+  debug(`Single flight: ${singleFlightStats.started} distinct requests, ${singleFlightStats.coalesced} coalesced into them`);
+}
+
+/**
+ * Returns the identical completion requests in flight that more than one caller is waiting on.
+ */
+function coalescedInFlight() {
+  return [...inFlightCompletions]
+    .filter(([, flight]) => flight.waiters > 1)
+    .map(([key, flight]) => ({ key, waiters: flight.waiters }));
+}
+
+if (!isMainThread) {
+  runParseWorker();
+} else {
+  debug("Fine Tuning GPT-3");
+  yargs(hideBin(process.argv))
+    .command(
+      "list",
+      "list the fine tunes and their status",
+      {},
+      () => {
+        debug("Listing fine tunes");
+        listFineTunes();
+      }
+    )
+    .command(
+      "generate <model> <prompt>",
+      "Generates code using the fine-tuned model given a prompt",
+      {
+        ...SAMPLING_OPTIONS,
+        ...HEDGE_OPTIONS,
+        cache: { type: "boolean", default: true, description: "Use the completion cache, --no-cache bypasses it" },
+        stream: { type: "boolean", default: false, description: "Print the completion as it is generated" },
+        "stop-at-boundary": {
+          type: "boolean",
+          default: false,
+          description: "Stop the completion once it closes the statement or block it opened",
+        },
+      },
+      async (argv) => {
+        debug("Generating code");
+        if (argv.hedgeModel && (argv.stream || argv.stopAtBoundary)) {
+          throw new Error("--hedge-model cannot be combined with --stream or --stop-at-boundary");
+        }
+        if (argv.stream) {
+          const { firstTokenMs, totalMs } = await generateCodeStreaming(argv.model, argv.prompt, process.stdout, {
+            params: samplingParams(argv),
+            cache: argv.cache,
+            stopAtBoundary: argv.stopAtBoundary,
+          });
+          process.stdout.write("\n");
+          debug(`First token after ${firstTokenMs.toFixed(1)}ms, completed in ${totalMs.toFixed(1)}ms`);
+          return;
+        }
+        const start = process.hrtime.bigint();
+        const options = {
+          params: samplingParams(argv),
+          cache: argv.cache,
+          stopAtBoundary: argv.stopAtBoundary,
+          hedge: hedgeOptions(argv),
+        };
+        generateCode(argv.model, argv.prompt, options).then((completion) => {
+          console.log(completion.choices[0].text);
+          debug(`Generated in ${(Number(process.hrtime.bigint() - start) / 1e6).toFixed(1)}ms`);
+          debugCompletionStats();
+        });
+      }
+    )
+    .command(
+      "generate-batch <model> <promptsFile>",
+      "Generates code for every prompt in a CSV or JSONL file and writes the completions to a JSONL file",
+      {
+        ...SAMPLING_OPTIONS,
+        ...HEDGE_OPTIONS,
+        cache: { type: "boolean", default: true, description: "Use the completion cache, --no-cache bypasses it" },
+        "batch-size": { type: "number", default: 20, description: "Number of prompts sent in each request" },
+        concurrency: { type: "number", default: 4, description: "Number of requests in flight at once" },
+        out: {
+          type: "string",
+          default: path.join(OUTPUT_PATH, "generations.jsonl"),
+          description: "JSONL file to write the prompts and completions to",
+        },
+      },
+      async (argv) => {
+        debug("Generating code for prompts in " + argv.promptsFile);
+        await generateCodeFromFile(argv.model, argv.promptsFile, argv.out, {
+          batchSize: argv.batchSize,
+          concurrency: argv.concurrency,
+          params: samplingParams(argv),
+          cache: argv.cache,
+          hedge: hedgeOptions(argv),
+        });
+        debugCompletionStats();
+      }
+    )
+    .command(
+      "serve",
+      "Serves completions over HTTP, keeping the OpenAI client and its connections warm between requests",
+      {
+        host: { type: "string", default: "127.0.0.1", description: "Host to listen on" },
+        port: { type: "number", default: 8080, description: "Port to listen on" },
+        cache: { type: "boolean", default: true, description: "Use the completion cache, --no-cache bypasses it" },
+        "batch-window": {
+          type: "number",
+          default: 10,
+          description: "Milliseconds to collect requests for the same model into one upstream request, 0 disables batching",
+        },
+        "max-batch": { type: "number", default: 20, description: "Most prompts to send in one upstream request" },
+        ...HEDGE_OPTIONS,
+      },
+      (argv) => {
+        serveCompletions({
+          host: argv.host,
+          port: argv.port,
+          cache: argv.cache,
+          batchWindowMs: argv.batchWindow,
+          maxBatch: argv.maxBatch,
+          hedge: hedgeOptions(argv),
+        });
+      }
+    )
+    .command(
+      ["upload", "$0"],
+      "upload the dataset after converting it to JSONL from CSV and create a fine tuned model",
+      {
+        dedup: DEDUP_OPTION,
+        "dedup-near": DEDUP_NEAR_OPTION,
+        ...TOKEN_BUDGET_OPTIONS,
+        shuffle: {
+          type: "boolean",
+          default: false,
+          description: "Shuffle the rows on disk, so similar rows are not clustered together",
+        },
+        seed: { type: "number", default: 0, description: "Seed of the --shuffle order" },
+        "validation-split": {
+          type: "number",
+          description: "Share of rows, between 0 and 1, held out in a validation file uploaded with the training file",
+        },
+      },
+      async (argv) => {
+        debug("Uploading dataset and fine tuning model");
+        await convertCsvToJsonl(CSV_DATASET_PATH, JSONL_DATASET_PATH, {
+          dedup: argv.dedup,
+          dedupNear: argv.dedupNear,
+          tokenBudget: argv.tokenBudget,
+          overBudget: argv.overBudget,
+          shuffleSeed: argv.shuffle ? argv.seed : undefined,
+          validationSplit: argv.validationSplit,
+          validationFilePath: JSONL_VALIDATION_PATH,
+        });
+        uploadDatasetAndFineTuneModel({ validation: argv.validationSplit !== undefined }).then((fineTuneId) => {
+          console.log(`Fine tune id: ${fineTuneId}`);
+        });
+      }
+    )
+    .command(
+      "merge [shards..]",
+      "Merges CSV and JSONL parser outputs, by default the parsed* files in the output directory, into the dataset",
+      {
+        dataset: { type: "boolean", default: true, description: "Merge the current dataset.csv too" },
+        out: { type: "string", default: CSV_DATASET_PATH, description: "CSV or JSONL file to write the merged dataset to" },
+      },
+      async (argv) => {
+        let shards = argv.shards || [];
+        if (shards.length === 0) {
+          // Only parser outputs, not generations.jsonl or the output of dedup-near
+          shards = fs
+            .readdirSync(OUTPUT_PATH, { withFileTypes: true })
+            .filter((entry) => entry.isFile() && /^parsed.*\.(csv|jsonl)$/.test(entry.name))
+            .map((entry) => path.join(OUTPUT_PATH, entry.name));
+        }
+        const files = (argv.dataset ? [CSV_DATASET_PATH] : []).concat(shards.map(String));
+        debug(`Merging ${files.join(", ")} into ${argv.out}`);
+        await mergeDatasets(files, argv.out);
+      }
+    )
+    .command(
+      "fetch-tokenizer",
+      "Downloads the GPT-2 vocabulary used to count tokens to data/tokenizer, replacing the vendored copy",
+      {},
+      async () => {
+        await fetchTokenizer();
+        console.log(`Downloaded the GPT-2 vocabulary to ${TOKENIZER_PATH}`);
+      }
+    )
+    .command(
+      "tokens <datasetFilePath>",
+      "Counts the GPT-2 tokens of the prompts and completions of a CSV or JSONL dataset",
+      {
+        rows: { type: "boolean", default: false, description: "Print the prompt and completion tokens of every row" },
+      },
+      async (argv) => {
+        const tokenizer = loadTokenizer();
+        const totals = { rows: 0, prompt: 0, completion: 0 };
+        const start = process.hrtime.bigint();
+        for await (const { prompt, completion } of readDatasetRecords(argv.datasetFilePath)) {
+          const promptTokens = tokenizer.count(prompt);
+          const completionTokens = tokenizer.count(completion || "");
+          if (argv.rows) {
+            console.log(`${totals.rows}\t${promptTokens}\t${completionTokens}`);
+          }
+          totals.rows++;
+          totals.prompt += promptTokens;
+          totals.completion += completionTokens;
+        }
+        const seconds = Number(process.hrtime.bigint() - start) / 1e9;
+        const tokens = totals.prompt + totals.completion;
+        console.log(
+          `${tokens} tokens${tokenizer.exact ? "" : " (estimated)"} in ${totals.rows} rows: ` +
+            `${totals.prompt} prompt and ${totals.completion} completion tokens, ` +
+            `${(tokens / seconds).toFixed(0)} tokens/second`
+        );
+      }
+    )
+    .command(
+      "dedup-near <datasetFilePath>",
+      "Collapses pairs of a CSV or JSONL dataset whose completions are near duplicates",
+      {
+        threshold: { type: "number", default: 0.7, description: "Jaccard similarity above which completions collapse" },
+        out: {
+          type: "string",
+          default: path.join(OUTPUT_PATH, "deduplicated.csv"),
+          description: "CSV or JSONL file to write the remaining pairs to, - for stdout",
+        },
+      },
+      async (argv) => {
+        const deduplicator = createNearDeduplicator({ threshold: argv.threshold });
+        const sink = createPairSink(argv.out);
+        for await (const { prompt, completion } of readDatasetRecords(argv.datasetFilePath)) {
+          if (deduplicator.keep(prompt, completion)) {
+            sink.emit(prompt, completion);
+            await sink.drain();
+          }
+        }
+        await sink.close();
+        deduplicator.debugStats();
+      }
+    )
+    .command(
+      "parse <sourceCodeFilePath>",
+      "Parses a JavaScript or TypeScript file or directory into a CSV that can be added to the dataset.csv file",
+      {
+        program: {
+          type: "boolean",
+          default: false,
+          description: "Build a full TypeScript program per file instead of parsing syntax only (slow)",
+        },
+        completion: {
+          choices: ["print", "slice"],
+          default: "print",
+          description: "Re-print completions with the TypeScript printer or slice them from the original source text",
+        },
+        workers: {
+          type: "number",
+          default: availableCpuCount(),
+          description: "Number of worker threads to parse files on, defaults to the number of available CPUs",
+        },
+        ...WALK_OPTIONS,
+        ...TRAVERSAL_OPTIONS,
+        nested: {
+          choices: ["keep", "suppress"],
+          default: "keep",
+          description: "suppress leaves out the pairs of nodes inside a node that already produced a pair",
+        },
+        "max-file-bytes": {
+          type: "number",
+          description: "Stop emitting pairs for a file once its pairs reach this many bytes, not applied with --watch",
+        },
+        cache: {
+          type: "boolean",
+          default: true,
+          description: "Reuse the pairs of unchanged files, --no-cache parses every file",
+        },
+        out: {
+          type: "string",
+          default: path.join(OUTPUT_PATH, "parsed.csv"),
+          description: "CSV or JSONL file to write the pairs to, - for stdout",
+        },
+        format: { choices: ["csv", "jsonl"], description: "Output format, inferred from the --out extension by default" },
+        dedup: DEDUP_OPTION,
+        watch: {
+          type: "boolean",
+          default: false,
+          description: "Keep watching the files and print the pairs added and removed by each change as JSON lines",
+        },
+      },
+      async (argv) => {
+        if (argv.watch) {
+          await watchSourceFiles(argv.sourceCodeFilePath, {
+            walk: walkOptions(argv),
+            completion: argv.completion,
+            ...traversalOptions(argv),
+            nested: argv.nested,
+            emit: (change) => console.log(JSON.stringify(change)),
+          });
+          return;
+        }
+        debug("Parsing source code: " + argv.sourceCodeFilePath);
+        const files = walkSourceFiles(argv.sourceCodeFilePath, walkOptions(argv));
+        const sink = createPairSink(argv.out, { format: argv.format });
+        const deduplicator = argv.dedup ? createDeduplicator() : undefined;
+        const emit = deduplicator
+          ? (prompt, completion) => deduplicator.keep(prompt, completion) && sink.emit(prompt, completion)
+          : sink.emit;
+        const { count, filesPerSecond } = await parseFilesTimed(files, {
+          program: argv.program,
+          completion: argv.completion,
+          ...traversalOptions(argv),
+          nested: argv.nested,
+          maxFileBytes: argv.maxFileBytes,
+          // Starting threads costs more than parsing a single file
+          workers: fs.statSync(argv.sourceCodeFilePath).isFile() ? 1 : argv.workers,
+          cache: argv.cache,
+          emit,
+          drain: sink.drain,
+        });
+        await sink.close();
+        debug(`Parsed ${count} files at ${filesPerSecond.toFixed(1)} files/second`);
+        debug(`Wrote ${sink.stats.rows} pairs (${sink.stats.bytes} bytes) to ${argv.out}`);
+        if (deduplicator) {
+          deduplicator.debugStats();
+        }
+        debugParseStats();
+      }
+    )
+    .command(
+      "bench-parse <sourceCodeFilePath>",
+      "Compares parse throughput in files/second between the full program and syntax only parsers",
+      {
+        iterations: { type: "number", default: 3, description: "How many times to parse the files with each parser" },
+        workers: { type: "number", default: 1, description: "Number of worker threads to parse files on" },
+        completion: { choices: ["print", "slice"], default: "print", description: "How completions are produced" },
+        ...WALK_OPTIONS,
+        ...TRAVERSAL_OPTIONS,
+      },
+      async (argv) => {
+        const files = [];
+        for await (const file of walkSourceFiles(argv.sourceCodeFilePath, walkOptions(argv))) {
+          files.push(file);
+        }
+        const emit = () => {};
+        for (const program of [true, false]) {
+          let best = 0;
+          for (let i = 0; i < argv.iterations; i++) {
+            const options = {
+              program,
+              emit,
+              workers: argv.workers,
+              completion: argv.completion,
+              ...traversalOptions(argv),
+              cache: false,
+            };
+            best = Math.max(best, (await parseFilesTimed(files, options)).filesPerSecond);
+          }
+          console.log(`${program ? "program" : "syntax"}: ${best.toFixed(1)} files/second over ${files.length} files`);
+        }
+      }
+    )
+    .command(
+      "bench-traversal [sourceCodeFilePath]",
+      "Compares recursive and explicit stack syntax tree traversal, on generated minified and deeply nested files " +
+        "when no path is given",
+      {
+        iterations: { type: "number", default: 5, description: "How many times to walk each file" },
+        statements: { type: "number", default: 20000, description: "Functions in the generated minified file" },
+        depth: { type: "number", default: 20000, description: "Nesting depth of the generated deeply nested file" },
+        ...WALK_OPTIONS,
+      },
+      async (argv) => {
+        let files = [];
+        if (argv.sourceCodeFilePath) {
+          for await (const file of walkSourceFiles(argv.sourceCodeFilePath, walkOptions(argv))) {
+            files.push(file);
+          }
+        } else {
+          files = writeTraversalBenchmarkFiles(argv);
+        }
+        for (const file of files) {
+          const sourceFile = createSyntaxSourceFile(file);
+          for (const [name, walk] of Object.entries(traversalBenchmarks())) {
+            let best = Infinity;
+            let nodes;
+            try {
+              for (let i = 0; i < argv.iterations; i++) {
+                const start = process.hrtime.bigint();
+                nodes = walk(sourceFile);
+                best = Math.min(best, Number(process.hrtime.bigint() - start) / 1e6);
+              }
+              console.log(`${path.basename(file)} ${name}: ${best.toFixed(1)}ms, ${nodes} nodes`);
+            } catch (error) {
+              if (!(error instanceof RangeError)) {
+                throw error;
+              }
+              console.log(`${path.basename(file)} ${name}: ${error.message}`);
+            }
+          }
+        }
+      }
+    )
+    .parse();
+}